@@ -1,16 +1,37 @@
 package com.connergdavis.rsps;
 
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 /**
  * Constantly looping thread that tries to accept any
- * new clients that want to.
+ * new clients that want to join a {@link World}.
  *
  * @author Conner Davis <connergdavis@gmail.com>
  */
 final class Acceptor implements Runnable
 {
 
+    /**
+     * How long to wait after accepting failed, so that something that keeps
+     * failing (like running out of file handles) doesn't have us spinning.
+     */
+    private static final long RETRY_DELAY = 100;
+
+    private final World world;
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * @param world         The world to let peers into.
+     * @param serverChannel The socket to accept them from, possibly shared with other acceptors.
+     */
+    Acceptor(World world, ServerSocketChannel serverChannel)
+    {
+        this.world = world;
+        this.serverChannel = serverChannel;
+    }
+
     @Override
     public void run()
     {
@@ -20,20 +41,31 @@ final class Acceptor implements Runnable
         {
             try
             {
-                channel = Server.serverChannel.accept();
+                channel = serverChannel.accept();
 
                 if (channel != null)
                 {
-                    // We had a new peer connect to us, so create their thread and start reading from them.
-                    channel.configureBlocking(true);
-                    new Thread(new Peer(channel)).start();
+                    world.accept(channel);
                 }
             }
+            catch (ClosedChannelException e)
+            {
+                // The server socket was closed because we're shutting down.
+                break;
+            }
             catch (Exception e)
             {
-                // This is fatal, so make sure to close the server.
+                // Probably just this one connection (or we're out of file handles for now),
+                // neither of which is worth taking the whole world down for.
                 e.printStackTrace();
-                System.exit(1);
+                try
+                {
+                    Thread.sleep(RETRY_DELAY);
+                }
+                catch (InterruptedException ie)
+                {
+                    break;
+                }
             }
         }
     }
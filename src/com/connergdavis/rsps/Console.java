@@ -0,0 +1,263 @@
+package com.connergdavis.rsps;
+
+import com.connergdavis.rsps.update.SessionStats;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads commands typed into the server's standard input, so that whoever
+ * is running the world can control it without killing the process.
+ *
+ * <ul>
+ *     <li><code>drain</code> - refuse new logins, but keep serving the cache.</li>
+ *     <li><code>undrain</code> - let people log in again.</li>
+ *     <li><code>shutdown</code> - log everyone out and stop the server.</li>
+ *     <li><code>reload</code> - pick up changes to the cache without waiting for them to be noticed.</li>
+ *     <li><code>status</code> - show how many peers are connected to each world.</li>
+ *     <li><code>top [count] [cpu|alloc|in|out|packets|decode]</code> - show the peers
+ *     that have cost us the most so far (by CPU time unless told otherwise), if
+ *     <code>stats.enabled</code> is set, then the update server's clients (by how
+ *     much we've sent them, unless sorting by traffic or requests).  CPU time and
+ *     allocations only cover each peer's own thread: not its in-game packets, which
+ *     the world's game thread handles, and not update server clients, which share
+ *     the update threads.</li>
+ * </ul>
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class Console implements Runnable
+{
+
+    /**
+     * How many peers <code>top</code> shows unless told otherwise.
+     */
+    private static final int DEFAULT_TOP = 10;
+    /**
+     * How many of each peer's busiest opcodes <code>top</code> shows.
+     */
+    private static final int TOP_OPCODES = 3;
+
+    @Override
+    public void run()
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+
+        try
+        {
+            while ((line = in.readLine()) != null)
+            {
+                String[] words = line.trim().toLowerCase().split("\\s+");
+                switch (words[0])
+                {
+                    case "drain":
+                        Server.setDraining(true);
+                        System.out.println("Draining, new logins will be refused.");
+                        break;
+                    case "undrain":
+                        Server.setDraining(false);
+                        System.out.println("No longer draining, logins are allowed again.");
+                        break;
+                    case "shutdown":
+                        // Our shutdown hook takes care of doing this gracefully.
+                        System.exit(0);
+                        break;
+                    case "reload":
+                        Server.reloadCache();
+                        break;
+                    case "status":
+                        for (World world : Server.getWorlds())
+                        {
+                            System.out.printf("World %d: %d peers connected, %d parked, %d packets handled%s.\n",
+                                world.getId(), world.getSessions().size(), world.getParkedSessions().size(),
+                                world.getPacketsHandled(), Server.isDraining() ? ", draining" : "");
+                        }
+                        break;
+                    case "top":
+                        top(words);
+                        break;
+                    case "":
+                        break;
+                    default:
+                        System.out.printf("Unknown command [%s]\n", line.trim());
+                        break;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void top(String[] words)
+    {
+        if (!Server.getConfig().isStatsEnabled())
+        {
+            System.out.println("Peer stats are off, start with --stats.enabled=true to keep them.");
+            return;
+        }
+
+        int count = DEFAULT_TOP;
+        String sort = "cpu";
+        for (int i = 1; i < words.length; i++)
+        {
+            try
+            {
+                count = Integer.parseInt(words[i]);
+            }
+            catch (NumberFormatException e)
+            {
+                sort = words[i];
+            }
+        }
+
+        final Metric metric = Metric.forName(sort);
+        if (metric == null)
+        {
+            System.out.printf("Can't sort peers by [%s]\n", sort);
+            return;
+        }
+
+        // Read each peer's numbers once, so they can't change while we're sorting.
+        List<Row> rows = new ArrayList<>();
+        for (World world : Server.getWorlds())
+        {
+            for (Peer peer : world.getSessions().snapshot())
+            {
+                PeerStats stats = peer.getStats();
+                if (stats != null)
+                {
+                    rows.add(new Row(world, peer, stats));
+                }
+            }
+        }
+        Collections.sort(rows, new Comparator<Row>()
+        {
+            @Override
+            public int compare(Row a, Row b)
+            {
+                return Long.compare(b.values[metric.ordinal()], a.values[metric.ordinal()]);
+            }
+        });
+
+        for (Row row : rows.subList(0, Math.min(count, rows.size())))
+        {
+            StringBuilder opcodes = new StringBuilder();
+            for (int opcode : row.stats.getTopOpcodes(TOP_OPCODES))
+            {
+                opcodes.append(String.format(" %d:%dx/%dB", opcode, row.stats.getPackets(opcode),
+                    row.stats.getBytes(opcode)));
+            }
+
+            long username = row.peer.getUsername();
+            System.out.printf("World %d %s %s: cpu %dms, alloc %dKB, in %dKB, out %dKB, %d packets, decode %dms,%s\n",
+                row.world.getId(), row.peer.getAddress(), username == 0L ? "-" : NameCodec.toString(username),
+                TimeUnit.NANOSECONDS.toMillis(row.values[Metric.CPU.ordinal()]),
+                row.values[Metric.ALLOC.ordinal()] / 1024, row.values[Metric.IN.ordinal()] / 1024,
+                row.values[Metric.OUT.ordinal()] / 1024, row.values[Metric.PACKETS.ordinal()],
+                TimeUnit.NANOSECONDS.toMillis(row.values[Metric.DECODE.ordinal()]),
+                opcodes.length() == 0 ? " no packets" : " top opcodes" + opcodes);
+        }
+        System.out.printf("%d of %d peers shown.\n", Math.min(count, rows.size()), rows.size());
+
+        // The update server's clients have no thread of their own, so only their traffic can be compared.
+        final int column = metric == Metric.IN ? 0 : metric == Metric.PACKETS ? 2 : 1;
+        List<UpdateRow> sessions = new ArrayList<>();
+        for (SessionStats stats : Server.getUpdateServer().getSessionStats())
+        {
+            sessions.add(new UpdateRow(stats));
+        }
+        Collections.sort(sessions, new Comparator<UpdateRow>()
+        {
+            @Override
+            public int compare(UpdateRow a, UpdateRow b)
+            {
+                return Long.compare(b.values[column], a.values[column]);
+            }
+        });
+
+        for (UpdateRow row : sessions.subList(0, Math.min(count, sessions.size())))
+        {
+            System.out.printf("Update %s: in %dKB, out %dKB, %d requests\n", row.stats.getAddress(),
+                row.values[0] / 1024, row.values[1] / 1024, row.values[2]);
+        }
+        System.out.printf("%d of %d update server clients shown.\n", Math.min(count, sessions.size()),
+            sessions.size());
+    }
+
+    /**
+     * What the <code>top</code> command can sort peers by.
+     */
+    private enum Metric
+    {
+
+        CPU,
+        ALLOC,
+        IN,
+        OUT,
+        PACKETS,
+        DECODE;
+
+        static Metric forName(String name)
+        {
+            for (Metric metric : values())
+            {
+                if (metric.name().equalsIgnoreCase(name))
+                {
+                    return metric;
+                }
+            }
+            return null;
+        }
+
+    }
+
+    private static final class Row
+    {
+
+        private final World world;
+        private final Peer peer;
+        private final PeerStats stats;
+        private final long[] values = new long[Metric.values().length];
+
+        Row(World world, Peer peer, PeerStats stats)
+        {
+            this.world = world;
+            this.peer = peer;
+            this.stats = stats;
+            values[Metric.CPU.ordinal()] = stats.getCpuNanos();
+            values[Metric.ALLOC.ordinal()] = stats.getAllocatedBytes();
+            values[Metric.IN.ordinal()] = stats.getBytesIn();
+            values[Metric.OUT.ordinal()] = stats.getBytesOut();
+            values[Metric.PACKETS.ordinal()] = stats.getPackets();
+            values[Metric.DECODE.ordinal()] = stats.getDecodeNanos();
+        }
+
+    }
+
+    private static final class UpdateRow
+    {
+
+        private final SessionStats stats;
+        /**
+         * Bytes in, bytes out and requests, read once.
+         */
+        private final long[] values;
+
+        UpdateRow(SessionStats stats)
+        {
+            this.stats = stats;
+            this.values = new long[] { stats.getBytesIn(), stats.getBytesOut(), stats.getRequests() };
+        }
+
+    }
+
+}
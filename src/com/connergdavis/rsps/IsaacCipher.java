@@ -2,8 +2,6 @@ package com.connergdavis.rsps;
 
 /**
  * Implementation of an ISAAC cipher.
- * <p/>
- * NOTE: because Paladino76 disabled the ISAAC client side (stupid idea really) we don't use this.
  *
  * @author Varek
  */
@@ -0,0 +1,204 @@
+package com.connergdavis.rsps;
+
+/**
+ * Player names travel as base 37 longs: each of up to twelve characters
+ * is one of <code>_a-z0-9</code>.  Comparing two names is just comparing
+ * two longs, so we only ever need to turn one into a {@link String} to
+ * show it to a human, and even then {@link #toString(long)} usually hands
+ * back the same interned instance instead of building a new one.
+ *
+ * Nothing here allocates except the first time a name is interned.  Names
+ * come from clients, who can make up as many as they like, so the intern
+ * table starts over once it holds {@link #MAX_INTERNED} of them.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class NameCodec
+{
+
+    /**
+     * Longest name that fits in a long.
+     */
+    public static final int MAX_LENGTH = 12;
+    /**
+     * Most names we keep interned at once, a good deal more than are ever online.
+     */
+    static final int MAX_INTERNED = 1 << 16;
+
+    private static final char[] VALID_CHARS = {
+        '_', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+        'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z', '0',
+        '1', '2', '3', '4', '5', '6', '7', '8', '9'
+    };
+
+    /**
+     * Every name we've turned into a string so far.
+     */
+    private static final Table names = new Table();
+
+    private NameCodec()
+    {
+    }
+
+    /**
+     * @param name  The encoded name.
+     * @return      Whether it's something the client could have actually sent.
+     */
+    public static boolean isValid(long name)
+    {
+        return name > 0L && name < 0x5b5b57f8a98a5dd1L && name % 37L != 0L;
+    }
+
+    /**
+     * Decode a name into a buffer we already have.
+     *
+     * @param name  The encoded name.
+     * @param dst   Where to write the characters, must fit {@link #MAX_LENGTH}.
+     * @return      How many characters were written, or -1 if the name isn't valid.
+     */
+    public static int decode(long name, char[] dst)
+    {
+        if (!isValid(name))
+        {
+            return -1;
+        }
+
+        int length = 0;
+        for (long l = name; l != 0L; l /= 37L)
+        {
+            length++;
+        }
+
+        for (int i = length - 1; i >= 0; i--)
+        {
+            long next = name / 37L;
+            dst[i] = VALID_CHARS[(int) (name - next * 37L)];
+            name = next;
+        }
+        return length;
+    }
+
+    /**
+     * Encode a name the same way the client does.  Uppercase letters are
+     * treated as lowercase, and anything that isn't a letter or digit
+     * becomes an underscore.
+     *
+     * @param str   The name to encode, only the first {@link #MAX_LENGTH} characters count.
+     * @return      The encoded name.
+     */
+    public static long encode(CharSequence str)
+    {
+        long name = 0L;
+        for (int i = 0; i < str.length() && i < MAX_LENGTH; i++)
+        {
+            char c = str.charAt(i);
+            name *= 37L;
+            if (c >= 'A' && c <= 'Z')
+            {
+                name += 1 + c - 'A';
+            }
+            else if (c >= 'a' && c <= 'z')
+            {
+                name += 1 + c - 'a';
+            }
+            else if (c >= '0' && c <= '9')
+            {
+                name += 27 + c - '0';
+            }
+        }
+
+        // Trailing underscores aren't part of the name.
+        while (name % 37L == 0L && name != 0L)
+        {
+            name /= 37L;
+        }
+        return name;
+    }
+
+    /**
+     * @param name  The encoded name.
+     * @return      The name as a string (normally the same instance each time
+     *              for the same name), or null if it isn't valid.
+     */
+    public static String toString(long name)
+    {
+        return isValid(name) ? names.intern(name) : null;
+    }
+
+    /**
+     * Open addressing map of encoded names to their strings, keyed by
+     * the raw long so lookups don't box anything.
+     */
+    private static final class Table
+    {
+
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private String[] values = new String[INITIAL_CAPACITY];
+        private int size;
+
+        synchronized String intern(long name)
+        {
+            int slot = find(keys, name);
+            if (keys[slot] == name)
+            {
+                return values[slot];
+            }
+
+            if (size >= MAX_INTERNED)
+            {
+                // Someone's making up names, so forget them all rather than grow forever.
+                keys = new long[INITIAL_CAPACITY];
+                values = new String[INITIAL_CAPACITY];
+                size = 0;
+                slot = find(keys, name);
+            }
+
+            char[] chars = new char[MAX_LENGTH];
+            String str = new String(chars, 0, decode(name, chars));
+            keys[slot] = name;
+            values[slot] = str;
+
+            if (++size > keys.length / 2)
+            {
+                grow();
+            }
+            return str;
+        }
+
+        private void grow()
+        {
+            long[] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new String[oldValues.length * 2];
+
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldKeys[i] != 0L)
+                {
+                    int slot = find(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        /**
+         * @return  The slot holding the name, or the empty slot it belongs in.
+         */
+        private static int find(long[] keys, long name)
+        {
+            int mask = keys.length - 1;
+            int slot = (int) (name ^ (name >>> 32)) * 0x9E3779B9 & mask;
+            while (keys[slot] != 0L && keys[slot] != name)
+            {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+    }
+
+}
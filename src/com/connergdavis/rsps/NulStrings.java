@@ -0,0 +1,56 @@
+package com.connergdavis.rsps;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reading of the NUL-terminated strings the client sends, without
+ * building a {@link String} (or anything else) for each of them.
+ * Most of them we don't even look at, and the rest we only need as
+ * bytes anyway.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class NulStrings
+{
+
+    private NulStrings()
+    {
+    }
+
+    /**
+     * Move past a string we don't care about.
+     *
+     * @param buf   The buffer, positioned at the start of the string.
+     */
+    public static void skip(ByteBuffer buf)
+    {
+        while (buf.get() != 0)
+        {
+            // Keep going until the terminator.
+        }
+    }
+
+    /**
+     * Copy a string's bytes into a buffer we already have.  The whole string is
+     * always consumed, even if it doesn't fit.
+     *
+     * @param buf   The buffer, positioned at the start of the string.
+     * @param dst   Where to copy the string's bytes to.
+     * @return      The string's length, or -1 if it was too long to fit in dst.
+     */
+    public static int read(ByteBuffer buf, byte[] dst)
+    {
+        int length = 0;
+        byte next;
+        while ((next = buf.get()) != 0)
+        {
+            if (length < dst.length)
+            {
+                dst[length] = next;
+            }
+            length++;
+        }
+        return length > dst.length ? -1 : length;
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.connergdavis.rsps;
+
+import com.connergdavis.rsps.handler.game.GamePacket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of in-game packets that a {@link Peer}'s thread has
+ * read, waiting to be processed by its {@link World}'s game thread.
+ *
+ * Exactly one thread adds to it and exactly one takes from it, so it
+ * can be a plain ring buffer that needs no locks: each side only ever
+ * writes its own counter, and reads the other's to know how far it may go.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class PacketQueue
+{
+
+    private final GamePacket[] ring;
+    private final int mask;
+    /**
+     * Next packet to take, only written by the game thread.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Next spot to fill, only written by the peer's thread.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The peer thread's last look at {@link #head}, so it only has to look
+     * again when the queue seems full.
+     */
+    private long cachedHead;
+
+    /**
+     * @param capacity  The most packets that can be waiting, rounded up to a power of two.
+     */
+    PacketQueue(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        ring = new GamePacket[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add a packet.  Only ever called from the peer's thread.
+     *
+     * @return  False if the queue is full.
+     */
+    boolean offer(GamePacket packet)
+    {
+        long t = tail.get();
+        if (t - cachedHead >= ring.length)
+        {
+            cachedHead = head.get();
+            if (t - cachedHead >= ring.length)
+            {
+                return false;
+            }
+        }
+
+        ring[(int) t & mask] = packet;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest packet.  Only ever called from the game thread.
+     *
+     * @return  The packet, or null if there are none waiting.
+     */
+    GamePacket poll()
+    {
+        long h = head.get();
+        if (h >= tail.get())
+        {
+            return null;
+        }
+
+        int index = (int) h & mask;
+        GamePacket packet = ring[index];
+        ring[index] = null;
+        head.lazySet(h + 1);
+        return packet;
+    }
+
+    int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+}
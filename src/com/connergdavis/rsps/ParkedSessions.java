@@ -0,0 +1,300 @@
+package com.connergdavis.rsps;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Players whose connection dropped without them logging out, kept in their
+ * {@link PlayerStore} slot for a little while in case they come right back.
+ * When a whole ISP blips and thousands of players reconnect at once, that
+ * saves loading every one of them again.
+ *
+ * A parked player is picked up again either by logging in as usual (which
+ * the stock client does by itself after a drop), or by a patched client
+ * presenting the resume token it was given at login, which skips the RSA
+ * block entirely.  Tokens are random, only work once and only until the
+ * grace period is over, after which the slot is released for good.
+ *
+ * A token alone isn't enough though, since anyone watching the connection
+ * could copy it.  The client also has to prove it knows the ISAAC seeds the
+ * session was started with (which only ever crossed the wire inside the RSA
+ * block), with an HMAC keyed by those seeds over the token and the session
+ * key we just sent it from {@link com.connergdavis.rsps.handler.login.LoginRequest},
+ * so a proof can't be used twice either.  The resumed session gets seeds
+ * derived from the old ones and that same key, rather than the old seeds
+ * again, which would replay a keystream the eavesdropper has already seen.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class ParkedSessions
+{
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] PROOF_LABEL = "resume proof".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEY_SET_LABEL = "resume seeds".getBytes(StandardCharsets.US_ASCII);
+
+    private final PlayerStore players;
+    private final long grace;
+    private final boolean tokens;
+    private final Map<Long, Session> byToken = new HashMap<>();
+    private final Map<Long, Session> byUsername = new HashMap<>();
+
+    /**
+     * @param players   Where parked players' slots live, released once they expire.
+     * @param grace     How long a player stays parked, in milliseconds.  0 parks no one.
+     * @param tokens    Whether to hand out resume tokens, which only patched clients understand.
+     */
+    ParkedSessions(PlayerStore players, long grace, boolean tokens)
+    {
+        this.players = players;
+        this.grace = grace;
+        this.tokens = tokens && grace > 0;
+    }
+
+    /**
+     * @return  A new resume token, never 0 (which means no token.)
+     */
+    static long createToken()
+    {
+        long token;
+        do
+        {
+            token = random.nextLong();
+        }
+        while (token == 0L);
+        return token;
+    }
+
+    /**
+     * @param keySet    The ISAAC seeds the session was started with.
+     * @param nonce     The session key the server sent before the resume request.
+     * @param token     The token being resumed with.
+     * @return          What the client has to send along with the token to show
+     *                  that it's the one that was given it.
+     */
+    static byte[] prove(int[] keySet, long nonce, long token)
+    {
+        return mac(keySet, ByteBuffer.allocate(PROOF_LABEL.length + 16).put(PROOF_LABEL).putLong(nonce)
+            .putLong(token).array());
+    }
+
+    /**
+     * @param keySet    The ISAAC seeds the session was started with.
+     * @param nonce     The session key the server sent before the resume request.
+     * @return          The seeds both sides start their ciphers from once resumed.
+     */
+    static int[] deriveKeySet(int[] keySet, long nonce)
+    {
+        ByteBuffer derived = ByteBuffer.wrap(mac(keySet, ByteBuffer.allocate(KEY_SET_LABEL.length + 8)
+            .put(KEY_SET_LABEL).putLong(nonce).array()));
+        return new int[] { derived.getInt(), derived.getInt(), derived.getInt(), derived.getInt() };
+    }
+
+    private static byte[] mac(int[] keySet, byte[] data)
+    {
+        ByteBuffer key = ByteBuffer.allocate(keySet.length * 4);
+        for (int seed : keySet)
+        {
+            key.putInt(seed);
+        }
+
+        try
+        {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key.array(), MAC_ALGORITHM));
+            return mac.doFinal(data);
+        }
+        catch (GeneralSecurityException e)
+        {
+            // Every JVM has to support it, so this can't happen.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean isEnabled()
+    {
+        return grace > 0;
+    }
+
+    boolean isTokensEnabled()
+    {
+        return tokens;
+    }
+
+    /**
+     * Hold on to a player whose connection dropped.  If parking is off, the
+     * slot is released straight away instead.
+     *
+     * @param slot      The player's slot.
+     * @param username  The player's encoded name.
+     * @param token     The resume token the player was given, or 0 if none.
+     * @param keySet    The ISAAC seeds the player logged in with.
+     */
+    synchronized void park(int slot, long username, long token, int[] keySet)
+    {
+        if (!isEnabled())
+        {
+            players.release(slot);
+            return;
+        }
+
+        Session replaced = byUsername.get(username);
+        if (replaced != null)
+        {
+            // Two peers shouldn't have been logged in as the same player, keep the latest.
+            forget(replaced);
+            players.release(replaced.slot);
+        }
+
+        Session session = new Session(slot, username, token, keySet, System.currentTimeMillis() + grace);
+        byUsername.put(username, session);
+        if (token != 0L)
+        {
+            byToken.put(token, session);
+        }
+    }
+
+    /**
+     * Take back a parked player by their resume token.  A token without the
+     * right proof is turned away but stays valid, so that someone who copied
+     * it can't stop the real client from resuming.
+     *
+     * @param token The token the client was given.
+     * @param nonce The session key we sent the client before it asked to resume.
+     * @param proof What the client sent to prove it was given the token, see
+     *              {@link #prove(int[], long, long)}.
+     * @return      The player, or null if the token is unknown, the proof is wrong,
+     *              or it has expired.
+     */
+    synchronized Session resume(long token, long nonce, byte[] proof)
+    {
+        Session session = byToken.get(token);
+        if (session == null || !MessageDigest.isEqual(prove(session.keySet, nonce, token), proof))
+        {
+            return null;
+        }
+
+        forget(session);
+        if (session.isExpired(System.currentTimeMillis()))
+        {
+            players.release(session.slot);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Take back a parked player who logged in again the normal way.
+     *
+     * @return  The player, or null if they weren't parked (or have expired.)
+     */
+    synchronized Session reclaim(long username)
+    {
+        Session session = byUsername.get(username);
+        if (session == null)
+        {
+            return null;
+        }
+
+        forget(session);
+        if (session.isExpired(System.currentTimeMillis()))
+        {
+            players.release(session.slot);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Release the slots of everyone whose grace period is over.  Called by the
+     * game thread every tick, so it has to be cheap when nobody is parked.
+     */
+    synchronized void expire()
+    {
+        if (byUsername.isEmpty())
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Session> sessions = byUsername.values().iterator();
+        while (sessions.hasNext())
+        {
+            Session session = sessions.next();
+            if (session.isExpired(now))
+            {
+                sessions.remove();
+                byToken.remove(session.token);
+                players.release(session.slot);
+            }
+        }
+    }
+
+    synchronized int size()
+    {
+        return byUsername.size();
+    }
+
+    private void forget(Session session)
+    {
+        byUsername.remove(session.username);
+        if (session.token != 0L)
+        {
+            byToken.remove(session.token);
+        }
+    }
+
+    static final class Session
+    {
+
+        private final int slot;
+        private final long username;
+        private final long token;
+        private final int[] keySet;
+        private final long expires;
+
+        private Session(int slot, long username, long token, int[] keySet, long expires)
+        {
+            this.slot = slot;
+            this.username = username;
+            this.token = token;
+            this.keySet = keySet;
+            this.expires = expires;
+        }
+
+        private boolean isExpired(long now)
+        {
+            return now - expires >= 0;
+        }
+
+        int getSlot()
+        {
+            return slot;
+        }
+
+        long getUsername()
+        {
+            return username;
+        }
+
+        /**
+         * @return  The ISAAC seeds the player's session was started with, which the
+         *          seeds of the resumed session are derived from.
+         */
+        int[] getKeySet()
+        {
+            return keySet;
+        }
+
+    }
+
+}
@@ -2,11 +2,19 @@ package com.connergdavis.rsps;
 
 import com.connergdavis.rsps.handler.Handler;
 import com.connergdavis.rsps.handler.InvalidStreamException;
-import com.connergdavis.rsps.handler.login.*;
+import com.connergdavis.rsps.handler.game.GamePacket;
+import com.connergdavis.rsps.handler.login.Login;
+import com.connergdavis.rsps.handler.login.LoginRequest;
+import com.connergdavis.rsps.handler.login.ResumeRequest;
+import com.connergdavis.rsps.handler.login.UpdateServerHandshake;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Representation of an individual 'peer' on the network,
@@ -19,26 +27,25 @@ import java.nio.channels.SocketChannel;
 public final class Peer implements Runnable
 {
 
+    private final World world;
     private SocketChannel channel;
     /**
      * Constantly flowing buffer of data that gets accessed
      * whenever this peer sends something to us.
      */
-    private ByteBuffer in = ByteBuffer.allocate(8192);
+    private ByteBuffer in = ByteBuffer.allocate(Server.getConfig().getPeerBufferSize());
     /**
-     * In the case that TCP decides to ruthlessly fragment packets,
-     * this helps us by letting us keep track of the current packet's
-     * ID so that when all the data finally gets to us, we haven't
-     * lost it.
+     * Responses to everything we decoded from a single read, so they
+     * can all be written to the peer at once.
      */
-    private int currentPacketId = -1;
+    private final List<ByteBuffer> responses = new ArrayList<>();
     /**
      * Keeps track of two states: pre-login or logging in, and logged in.
      * The difference is in the packets, as well as the fact that the ISAAC
      * cipher isn't applied to LOGIN packets, whereas it will be for LOGGED_IN
      * packets.
      */
-    private ConnectionStage connectionStage = ConnectionStage.LOGIN;
+    private volatile ConnectionStage connectionStage = ConnectionStage.LOGIN;
 
     /**
      * Pair of ISAAC stream ciphers which are used to encrypt the opcodes
@@ -46,16 +53,12 @@ public final class Peer implements Runnable
      */
     private IsaacCipher inCipher;
     private IsaacCipher outCipher;
-
     /**
-     * Required in order to convert the player's username from long
-     * form to string form during login.
+     * The decrypted ID of an in-game packet that hasn't all arrived yet, or -1.
+     * Each ID takes the next key from {@link #inCipher}, so it has to be kept
+     * rather than decrypted again once the rest of the packet is here.
      */
-    private static final char[] VALID_CHARS = {
-        '_', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
-        'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z', '0',
-        '1', '2', '3', '4', '5', '6', '7', '8', '9'
-    };
+    private int pendingPacketId = -1;
 
     /**
      * Only temporarily kept during login, this is just another thing
@@ -63,83 +66,163 @@ public final class Peer implements Runnable
      * during login.
      */
     private int usernameHash;
+    /**
+     * The session key we last answered a login request with, which a resume
+     * request has to prove itself against.  0 if there isn't one, or it has
+     * been used up.
+     */
+    private long serverSessionKey;
+    /**
+     * Where this peer's player lives in the world's {@link PlayerStore}
+     * once logged in, or -1 before that.
+     */
+    private volatile int playerSlot = -1;
+    /**
+     * The ISAAC seeds this peer's session was started with, kept so the session
+     * can be resumed.
+     */
+    private int[] keySet;
+    /**
+     * What this peer can resume its session with if it drops, or 0 if nothing.
+     */
+    private long resumeToken;
+    /**
+     * Cleared when the peer leaves in a way that means it isn't coming back,
+     * like being logged out or sending garbage, so its player isn't parked.
+     */
+    private volatile boolean parkable = true;
+    /**
+     * Set when we've turned the peer away, so that we hang up once the
+     * response saying why has been written.
+     */
+    private boolean refused;
 
-    Peer(SocketChannel channel)
+    /**
+     * In-game packets read by our thread, waiting for the game thread.
+     */
+    private final PacketQueue packets;
+
+    /**
+     * Held while writing to the channel, so that a shutdown doesn't cut
+     * off a response halfway through.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * What this peer has cost us, or null unless <code>stats.enabled</code> is set.
+     */
+    private final PeerStats stats;
+
+    /**
+     * What the client adds to each of its seeds for the cipher it decrypts
+     * our packet IDs with.
+     */
+    private static final int OUT_SEED_OFFSET = 50;
+    /**
+     * The ID of the packet that tells the 562 client it has been logged out.
+     */
+    private static final int LOGOUT_PACKET_ID = 86;
+    /**
+     * The ID of the in-game packet that gives a patched client its resume token.
+     * Not part of the 562 protocol, so only sent if resume tokens are turned on.
+     */
+    private static final int RESUME_TOKEN_PACKET_ID = 255;
+
+    Peer(World world, SocketChannel channel)
     {
+        this.world = world;
         this.channel = channel;
+        this.packets = new PacketQueue(Server.getConfig().getPacketQueueSize());
+        this.stats = Server.getConfig().isStatsEnabled() ? new PeerStats() : null;
     }
 
     @Override
     public void run()
     {
-        int available;
-        Handler currentHandler;
-
         /*
-        Basically, we'll block (continuously loop) on this thread and constantly
-        attempt to read data from the remote peer.
+        Basically, we'll block on this thread and constantly attempt to read
+        data from the remote peer.
 
         The way this works in a nutshell is that we assume we'll always start with a
-        packet ID from the beginning of the stream (always true.)
-
-        Then, we set that packet ID to memory so we can use it when the rest of the
-        actual packet's payload of data has been sent.
+        packet ID from the beginning of the stream (always true.)  After each read we
+        decode as many whole packets as the buffer holds, since clients like to send
+        several at once (especially during the update server handshake), and answer
+        all of them with a single write.
 
-        The reason I kept track of "available" bytes is because I continue to reposition
-        the ByteBuffer to the beginning of the packet's payload whenever we attempt to
-        decode it -- this allows us to keep adding data to the buffer as it's sent over
-        TCP.
+        If the last packet in the buffer isn't all there yet because TCP decided to
+        ruthlessly fragment it, we rewind to its ID and keep it (and nothing else)
+        in the buffer, so that the rest of it gets added on by the next read.
          */
-        while (true)
+        boolean handedOver = false;
+        if (stats != null)
         {
-            try
+            stats.attach();
+        }
+
+        try
+        {
+            int read;
+            while ((read = channel.read(in)) != -1)
             {
-                available = 0;
-                while ((available += channel.read(in)) != -1)
+                long start = 0;
+                if (stats != null)
                 {
-                    if (currentPacketId == -1)
-                    {
-                        in.flip();
-                        currentPacketId = in.get() & 0xFF;
-                        in.mark();
-                    }
+                    stats.received(read);
+                    start = System.nanoTime();
+                }
 
-                    in.reset();
-                    if ((currentHandler = getHandlerById(channel, currentPacketId)).decode(in))
+                in.flip();
+                try
+                {
+                    if (decodeAll())
                     {
-                        handleByHandler(currentHandler);
-                        try
-                        {
-                            ByteBuffer response = currentHandler.respond();
-                            response.flip();
-                            channel.write(response);
-                        }
-                        catch (NullPointerException e)
-                        {
-                            // Ignore, this happens if the handler has nothing to respond with.
-                        }
-
-                        currentPacketId = -1;
-                        available = 0;
-                        in.clear();
+                        // The update server took over the channel.
+                        handedOver = true;
+                        return;
                     }
-                    else
+                }
+                finally
+                {
+                    in.compact();
+                    if (stats != null)
                     {
-                        in.position(available);
+                        stats.decodeTime(System.nanoTime() - start);
                     }
                 }
+
+                write(responses);
+                if (refused)
+                {
+                    return;
+                }
+                if (!in.hasRemaining())
+                {
+                    throw new InvalidStreamException("Packet too large for buffer");
+                }
             }
-            catch (InvalidStreamException ise)
-            {
-                ise.printStackTrace();
-                break;
-            }
-            catch (IOException ioe)
+        }
+        catch (InvalidStreamException | BufferUnderflowException ise)
+        {
+            parkable = false;
+            ise.printStackTrace();
+        }
+        catch (IOException ioe)
+        {
+            // The peer went away, or we were closed by a shutdown.
+        }
+        finally
+        {
+            // Even if something we didn't expect went wrong, don't leave the peer
+            // connected with nobody reading from it, or holding its player slot.
+            if (!handedOver)
             {
-                break;
+                close();
             }
         }
+    }
 
+    private void close()
+    {
         try
         {
             /*
@@ -152,6 +235,247 @@ public final class Peer implements Runnable
         {
             e.printStackTrace();
         }
+        finally
+        {
+            if (playerSlot != -1 && parkable && !Server.isDraining())
+            {
+                // They only dropped, so keep their place for a while in case they're back soon.
+                world.getParkedSessions().park(playerSlot, world.getPlayers().getUsername(playerSlot),
+                    resumeToken, keySet);
+            }
+            else if (playerSlot != -1)
+            {
+                world.getPlayers().release(playerSlot);
+            }
+            world.getSessions().remove(this);
+        }
+    }
+
+    /**
+     * Decode every whole packet in our (flipped) buffer, leaving it positioned
+     * at the start of whatever's left over, and collect the responses.
+     *
+     * @return  True if the peer asked for the update server and has been handed
+     *          over to it, in which case we must not touch the channel anymore.
+     * @throws InvalidStreamException   If the peer sent something we can't make sense of.
+     * @throws IOException              If writing responses before a handover failed.
+     */
+    private boolean decodeAll() throws InvalidStreamException, IOException
+    {
+        Handler handler;
+        while (in.hasRemaining())
+        {
+            in.mark();
+            int start = in.position();
+            int packetId = in.get() & 0xFF;
+            if (connectionStage == ConnectionStage.LOGGED_IN)
+            {
+                if (pendingPacketId == -1)
+                {
+                    pendingPacketId = (packetId - inCipher.getNextKey()) & 0xFF;
+                }
+                packetId = pendingPacketId;
+            }
+            handler = getHandlerById(channel, packetId);
+            if (handler == null)
+            {
+                throw new InvalidStreamException("Unexpected packet");
+            }
+            if (!handler.decode(in))
+            {
+                if (handler instanceof UpdateServerHandshake && ((UpdateServerHandshake) handler).isOutOfDate())
+                {
+                    // Tell them to update, same as the update server's own port does, then hang up.
+                    ByteBuffer outOfDate = ByteBuffer.allocate(1);
+                    outOfDate.put((byte) UpdateServerHandshake.RESPONSE_OUT_OF_DATE).flip();
+                    responses.add(outOfDate);
+                    parkable = false;
+                    refused = true;
+                    break;
+                }
+
+                // Not all of it is here yet.
+                in.reset();
+                break;
+            }
+            pendingPacketId = -1;
+            if (stats != null)
+            {
+                stats.decoded(packetId, in.position() - start);
+            }
+
+            boolean loggingIn = connectionStage == ConnectionStage.LOGIN;
+            handleByHandler(handler);
+            ByteBuffer response = handler.respond();
+            if (response != null)
+            {
+                response.flip();
+                responses.add(response);
+            }
+            if (loggingIn && connectionStage == ConnectionStage.LOGGED_IN
+                && world.getParkedSessions().isTokensEnabled())
+            {
+                sendResumeToken();
+            }
+            if (refused)
+            {
+                // Nothing else they sent matters anymore.
+                break;
+            }
+
+            if (handler instanceof UpdateServerHandshake)
+            {
+                // From here on this peer only talks to the update server, which has
+                // threads of its own, so pass it whatever else it has sent already.
+                ByteBuffer pending = ByteBuffer.allocate(in.remaining()).put(in);
+                pending.flip();
+
+                write(responses);
+                world.getSessions().remove(this);
+                Server.getUpdateServer().register(channel, pending, true);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handle in-game packets that our thread has queued up.  Only ever called
+     * from the world's game thread, once per tick.
+     *
+     * @param max   The most packets to handle; the rest wait until next tick.
+     * @return      How many packets were handled.
+     */
+    int processPackets(int max)
+    {
+        GamePacket packet;
+        int handled = 0;
+        while (handled < max && (packet = packets.poll()) != null)
+        {
+            world.handle(this, packet);
+            handled++;
+        }
+        return handled;
+    }
+
+    /**
+     * Write all of a buffer to this peer, without anyone else being able
+     * to write to or close the channel in the middle of it.
+     *
+     * @param buf           The flipped buffer to write.
+     * @throws IOException  If the peer has gone away.
+     */
+    private void write(ByteBuffer buf) throws IOException
+    {
+        synchronized (writeLock)
+        {
+            while (buf.hasRemaining())
+            {
+                int written = channel.write(buf);
+                if (stats != null)
+                {
+                    stats.sent(written);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a batch of buffers with as few writes as possible, then forget them.
+     *
+     * @param bufs          The flipped buffers to write, in order.
+     * @throws IOException  If the peer has gone away.
+     */
+    private void write(List<ByteBuffer> bufs) throws IOException
+    {
+        if (bufs.isEmpty())
+        {
+            return;
+        }
+
+        ByteBuffer[] batch = bufs.toArray(new ByteBuffer[bufs.size()]);
+        bufs.clear();
+        synchronized (writeLock)
+        {
+            while (batch[batch.length - 1].hasRemaining())
+            {
+                long written = channel.write(batch);
+                if (stats != null)
+                {
+                    stats.sent(written);
+                }
+            }
+        }
+    }
+
+    /**
+     * Say goodbye to this peer.  Players who are in game are sent the logout
+     * packet first; anyone else (like someone still downloading the cache) is
+     * simply disconnected once their current response has been written.
+     *
+     * The peer's own thread notices the closed channel and cleans up after itself.
+     */
+    void logout()
+    {
+        parkable = false;
+        try
+        {
+            if (connectionStage == ConnectionStage.LOGGED_IN)
+            {
+                // Like every in-game packet, its ID is encrypted, so take the next key and write in one go.
+                synchronized (writeLock)
+                {
+                    ByteBuffer logout = ByteBuffer.allocate(1)
+                        .put((byte) (LOGOUT_PACKET_ID + outCipher.getNextKey()));
+                    logout.flip();
+                    write(logout);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // They're gone already, which is what we wanted anyway.
+        }
+        finally
+        {
+            synchronized (writeLock)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  What this peer has cost us so far, or null if we aren't keeping track.
+     */
+    PeerStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * @return  Where the peer is connecting from, if we know.
+     */
+    InetAddress getAddress()
+    {
+        return channel.socket().getInetAddress();
+    }
+
+    /**
+     * @return  The encoded name of the player this peer is logged in as, or 0 if
+     *          it isn't logged in.  See {@link NameCodec}.
+     */
+    long getUsername()
+    {
+        int slot = playerSlot;
+        return slot == -1 ? 0L : world.getPlayers().getUsername(slot);
     }
 
     /**
@@ -170,34 +494,25 @@ public final class Peer implements Runnable
      */
     private Handler getHandlerById(SocketChannel channel, int packetId) throws InvalidStreamException
     {
-        System.out.printf("Trying to find handler for packet [%d]\n", packetId);
         switch (connectionStage)
         {
             case LOGIN:
                 switch (packetId)
                 {
-                    case 15:    // Update server
+                    case 15:    // Update server, which takes over the rest of the connection
                         return new UpdateServerHandshake();
-                    case 6:
-                        return new UpdateServerClientInitiated();
-                    case 2:     // Client is logged in
-                    case 3:     // Client is logged out
-                        return new UpdateServerClientStatus();
-                    case 0:
-                    case 1:     // Update server priority request
-                        return new UpdateServerRequest(channel, packetId);
-                    case 4:
-                        return new UpdateServerNewEncryptionByte();
 
                     case 14:    // Login handshake
                         return new LoginRequest();
                     case 16:    // Verified login, really going to exchange data this time.
-                    case 18:
+                    case 18:    // Same, but sent when reconnecting after a drop.
                         return new Login(usernameHash);
+                    case 19:    // Resuming a dropped session with a token, only from patched clients.
+                        return world.getParkedSessions().isTokensEnabled() ? new ResumeRequest() : null;
                 }
                 break;
             case LOGGED_IN:
-                break;
+                return new GamePacket(packetId);
         }
         return null;
     }
@@ -208,71 +523,134 @@ public final class Peer implements Runnable
      *
      * Yes, I'm hilarious.
      *
-     * @param handler   The handler to.. handle.
+     * @param handler                   The handler to.. handle.
+     * @throws InvalidStreamException   If the peer can't be let in after all,
+     *                                  like when the world is full.
      */
-    private void handleByHandler(Handler handler)
+    private void handleByHandler(Handler handler) throws InvalidStreamException
     {
-        if (handler instanceof LoginRequest)
+        if (handler instanceof GamePacket)
+        {
+            if (!packets.offer((GamePacket) handler))
+            {
+                // The game thread can't keep up with them, so they must be flooding us.
+                throw new InvalidStreamException("Too many packets queued");
+            }
+        }
+        else if (handler instanceof ResumeRequest)
+        {
+            resume((ResumeRequest) handler);
+        }
+        else if (handler instanceof LoginRequest)
         {
             usernameHash = ((LoginRequest) handler).getUsernameHash();
+            serverSessionKey = ((LoginRequest) handler).getServerSessionKey();
         }
         else if (handler instanceof Login)
         {
+            if (Server.isDraining())
+            {
+                // They may have had their session key from before we started draining,
+                // or skipped asking for one at all; either way, nobody new gets in.
+                ((Login) handler).refuse();
+                parkable = false;
+                refused = true;
+                return;
+            }
+
             // Initialize the ISAAC ciphers for in-game packets
-            int[] keySet = ((Login) handler).getSessionKeySet();
-            inCipher = new IsaacCipher(keySet);
-            outCipher = new IsaacCipher(keySet);
+            startCiphers(((Login) handler).getSessionKeySet());
+
+            // If they only just dropped, they get their old place (and everything in it) back.
+            long username = ((Login) handler).getUsername();
+            ParkedSessions.Session parked = world.getParkedSessions().reclaim(username);
+            playerSlot = parked != null ? parked.getSlot() : world.getPlayers().allocate(username);
+            if (playerSlot == -1)
+            {
+                throw new InvalidStreamException("World is full");
+            }
 
             // Prepare this peer for in-game packets
             connectionStage = ConnectionStage.LOGGED_IN;
 
-            System.out.printf("Remote peer from [%s] logged in and ready for in-game packets.",
-                channel.socket().getInetAddress().toString());
+            System.out.printf("Remote peer from [%s] logged in and ready for in-game packets.\n",
+                channel.socket().getInetAddress());
         }
     }
 
     /**
-     * Read a NUL-terminated string from a bytestream.
+     * Start the ISAAC ciphers for in-game packets.  The client encrypts what it
+     * sends with the seeds as they are, and decrypts what we send with each
+     * seed plus {@link #OUT_SEED_OFFSET}, so we have to do the same.
      *
-     * @param in    The given bytestream to read from.
-     * @return      String of data composed from each char in the bytestream.
+     * @param keySet    The seeds of this peer's session.
      */
-    public static String getNULString(ByteBuffer in)
+    private void startCiphers(int[] keySet)
     {
-        StringBuilder str = new StringBuilder();
-        byte next;
-        while ((next = in.get()) != 0)
+        this.keySet = keySet;
+        int[] outSeeds = new int[keySet.length];
+        for (int i = 0; i < keySet.length; i++)
         {
-            str.append((char) next);
+            outSeeds[i] = keySet[i] + OUT_SEED_OFFSET;
         }
-        return str.toString();
+        inCipher = new IsaacCipher(keySet);
+        outCipher = new IsaacCipher(outSeeds);
     }
 
     /**
-     * Converts a long to a string!  Important in login to be able
-     * to read the given username.
-     *
-     * @param l You guessed it, the long we'll be converting today.
-     * @return  Again, you probably figured this one out -- our new string!!
+     * Put a peer back into the session it dropped from, if it's still parked
+     * and can prove the token is its own.  Both sides start their ISAAC ciphers
+     * from seeds derived from the session's seeds and the session key we sent,
+     * so the resumed session never reuses a keystream.
      */
-    public static String longToString(long l)
+    private void resume(ResumeRequest request)
     {
-        if (l <= 0L || l >= 0x5b5b57f8a98a5dd1L)
+        // Each session key is good for one try, so a proof can't be replayed on this connection.
+        long nonce = serverSessionKey;
+        serverSessionKey = 0L;
+        ParkedSessions.Session parked = Server.isDraining() || nonce == 0L
+            ? null
+            : world.getParkedSessions().resume(request.getToken(), nonce, request.getProof());
+        if (parked == null)
         {
-            return null;
+            // Let them log in the normal way instead.
+            return;
         }
-        if (l % 37L == 0L)
+
+        startCiphers(ParkedSessions.deriveKeySet(parked.getKeySet(), nonce));
+        playerSlot = parked.getSlot();
+        request.accept();
+        connectionStage = ConnectionStage.LOGGED_IN;
+
+        System.out.printf("Remote peer from [%s] resumed the session of [%s].\n",
+            channel.socket().getInetAddress(), NameCodec.toString(parked.getUsername()));
+    }
+
+    /**
+     * Hand out a new resume token, as an in-game packet.  The 562 protocol only
+     * encrypts packet IDs, so the token is masked with the next two keys from
+     * {@link #outCipher} as well rather than crossing the wire in the clear.
+     *
+     * It's the first in-game packet, so whatever responses we have (like the
+     * login response) go out first.  The keys are drawn and the packet written
+     * in one go, so that a {@link #logout()} from another thread can't take a
+     * later key and get its packet onto the wire ahead of ours.
+     *
+     * @throws IOException  If the peer has gone away.
+     */
+    private void sendResumeToken() throws IOException
+    {
+        resumeToken = ParkedSessions.createToken();
+        ByteBuffer packet = ByteBuffer.allocate(9);
+        synchronized (writeLock)
         {
-            return null;
-        }
-        int i = 0;
-        char ac[] = new char[12];
-        while (l != 0L) {
-            long l1 = l;
-            l /= 37L;
-            ac[11 - i++] = VALID_CHARS[(int) (l1 - l * 37L)];
+            write(responses);
+            packet.put((byte) (RESUME_TOKEN_PACKET_ID + outCipher.getNextKey()))
+                .putInt((int) (resumeToken >>> 32) ^ outCipher.getNextKey())
+                .putInt((int) resumeToken ^ outCipher.getNextKey());
+            packet.flip();
+            write(packet);
         }
-        return new String(ac, 12 - i, i);
     }
 
     /**
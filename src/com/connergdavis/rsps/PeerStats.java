@@ -0,0 +1,184 @@
+package com.connergdavis.rsps;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What a single {@link Peer} has cost us: bytes and packets in each direction,
+ * broken down by opcode, how long we spent decoding them, and (since every peer
+ * has a thread of its own) the CPU time and memory its thread has used.  Only
+ * kept when <code>stats.enabled</code> is set, for tracking down which clients
+ * or bots are slowing the server down without attaching a profiler.
+ *
+ * Counters may be read from any thread, so a reading can be a packet behind but
+ * is never torn.  Most are only ever updated by the peer's own thread.  Bytes
+ * sent are the exception, since whoever logs the peer out (the console or the
+ * shutdown hook) writes the logout packet itself, so that counter is atomic.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class PeerStats
+{
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private volatile long threadId = -1;
+    private volatile long bytesIn;
+    private final AtomicLong bytesOut = new AtomicLong();
+    private volatile long packets;
+    private volatile long decodeNanos;
+    private final AtomicLongArray opcodePackets = new AtomicLongArray(256);
+    private final AtomicLongArray opcodeBytes = new AtomicLongArray(256);
+
+    /**
+     * Ask the JVM to measure CPU time and allocations of each thread, which it
+     * may not do by default.  Called once at startup if stats are enabled.
+     *
+     * @return  False if this JVM can't tell us how much a thread allocated.
+     */
+    static boolean enable()
+    {
+        if (threads.isThreadCpuTimeSupported())
+        {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+            if (allocations.isThreadAllocatedMemorySupported())
+            {
+                allocations.setThreadAllocatedMemoryEnabled(true);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start counting CPU time and allocations of the calling thread as this peer's.
+     */
+    void attach()
+    {
+        threadId = Thread.currentThread().getId();
+    }
+
+    void received(int bytes)
+    {
+        bytesIn += bytes;
+    }
+
+    void sent(long bytes)
+    {
+        bytesOut.addAndGet(bytes);
+    }
+
+    void decoded(int opcode, int bytes)
+    {
+        packets++;
+        opcodePackets.lazySet(opcode, opcodePackets.get(opcode) + 1);
+        opcodeBytes.lazySet(opcode, opcodeBytes.get(opcode) + bytes);
+    }
+
+    void decodeTime(long nanos)
+    {
+        decodeNanos += nanos;
+    }
+
+    long getBytesIn()
+    {
+        return bytesIn;
+    }
+
+    long getBytesOut()
+    {
+        return bytesOut.get();
+    }
+
+    long getPackets()
+    {
+        return packets;
+    }
+
+    long getDecodeNanos()
+    {
+        return decodeNanos;
+    }
+
+    long getPackets(int opcode)
+    {
+        return opcodePackets.get(opcode);
+    }
+
+    long getBytes(int opcode)
+    {
+        return opcodeBytes.get(opcode);
+    }
+
+    /**
+     * @return  CPU time used by the peer's thread so far, or -1 if we can't tell.
+     */
+    long getCpuNanos()
+    {
+        long id = threadId;
+        if (id == -1 || !threads.isThreadCpuTimeSupported())
+        {
+            return -1;
+        }
+        return threads.getThreadCpuTime(id);
+    }
+
+    /**
+     * @return  Bytes allocated by the peer's thread so far, or -1 if we can't tell.
+     */
+    long getAllocatedBytes()
+    {
+        long id = threadId;
+        if (id == -1 || !(threads instanceof com.sun.management.ThreadMXBean))
+        {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(id);
+    }
+
+    /**
+     * @param count How many opcodes we want at most.
+     * @return      The opcodes this peer has sent the most bytes of, most first.
+     */
+    int[] getTopOpcodes(int count)
+    {
+        int[] top = new int[count];
+        long[] bytes = new long[count];
+        int found = 0;
+        for (int opcode = 0; opcode < 256; opcode++)
+        {
+            long value = opcodeBytes.get(opcode);
+            if (value == 0)
+            {
+                continue;
+            }
+
+            // Insertion into a tiny sorted array, count is only ever a handful.
+            int i = Math.min(found, count - 1);
+            if (found == count && value <= bytes[i])
+            {
+                continue;
+            }
+            while (i > 0 && bytes[i - 1] < value)
+            {
+                top[i] = top[i - 1];
+                bytes[i] = bytes[i - 1];
+                i--;
+            }
+            top[i] = opcode;
+            bytes[i] = value;
+            found = Math.min(found + 1, count);
+        }
+
+        int[] result = new int[found];
+        System.arraycopy(top, 0, result, 0, found);
+        return result;
+    }
+
+}
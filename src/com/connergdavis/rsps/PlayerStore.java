@@ -0,0 +1,278 @@
+package com.connergdavis.rsps;
+
+import java.nio.ByteBuffer;
+
+/**
+ * State of every player in a {@link World}, stored by player slot in
+ * one flat block of memory rather than as an object (or several) per
+ * player.
+ *
+ * Each field gets its own region with the values for every slot side
+ * by side, so a game loop that, say, looks at everyone's position only
+ * touches the memory holding positions.  It also means there's nothing
+ * for the garbage collector to trace, and saving or handing a copy to
+ * another thread is a single bulk copy.  The block can optionally live
+ * outside the Java heap altogether.
+ *
+ * Slots start at 1, since the client treats index 0 as "nobody".  Only
+ * the game thread should change a player's state; taking and giving back
+ * slots is safe from any thread.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class PlayerStore
+{
+
+    public static final int SKILL_COUNT = 25;
+    public static final int INVENTORY_SIZE = 28;
+
+    /*
+     Sizes in bytes of each field for a single player.
+     */
+    private static final int USERNAME_SIZE = 8;
+    private static final int POSITION_SIZE = 4;
+    private static final int PLANE_SIZE = 1;
+    private static final int FLAGS_SIZE = 4;
+    private static final int SKILL_LEVEL_SIZE = SKILL_COUNT;
+    private static final int SKILL_XP_SIZE = SKILL_COUNT * 4;
+    private static final int ITEM_SIZE = INVENTORY_SIZE * 4;
+
+    private final int capacity;
+    private final ByteBuffer data;
+
+    /*
+     Where each field's region starts in the block.
+     */
+    private final int usernames;
+    private final int xs;
+    private final int ys;
+    private final int planes;
+    private final int flags;
+    private final int skillLevels;
+    private final int skillXps;
+    private final int items;
+    private final int itemAmounts;
+
+    /**
+     * Slots nobody is using, as a stack so that recently freed (and still
+     * cached) slots are handed out first.
+     */
+    private final int[] free;
+    private int freeCount;
+
+    /**
+     * @param capacity  The most players this store can hold.
+     * @param offHeap   Whether to keep the state outside the Java heap.
+     */
+    public PlayerStore(int capacity, boolean offHeap)
+    {
+        this.capacity = capacity;
+
+        // One extra slot so slot numbers can be used as is.
+        int slots = capacity + 1;
+        usernames = 0;
+        xs = usernames + slots * USERNAME_SIZE;
+        ys = xs + slots * POSITION_SIZE;
+        planes = ys + slots * POSITION_SIZE;
+        flags = planes + slots * PLANE_SIZE;
+        skillLevels = flags + slots * FLAGS_SIZE;
+        skillXps = skillLevels + slots * SKILL_LEVEL_SIZE;
+        items = skillXps + slots * SKILL_XP_SIZE;
+        itemAmounts = items + slots * ITEM_SIZE;
+        int size = itemAmounts + slots * ITEM_SIZE;
+
+        data = offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+
+        free = new int[capacity];
+        for (int slot = capacity; slot >= 1; slot--)
+        {
+            free[freeCount++] = slot;
+        }
+    }
+
+    /**
+     * Take a free slot for a player who just logged in, wiping anything
+     * the last player in it left behind.
+     *
+     * @param username  The player's encoded name.
+     * @return          The player's slot, or -1 if the store is full.
+     */
+    public synchronized int allocate(long username)
+    {
+        if (freeCount == 0)
+        {
+            return -1;
+        }
+
+        int slot = free[--freeCount];
+        clear(slot);
+        data.putLong(usernames + slot * USERNAME_SIZE, username);
+        return slot;
+    }
+
+    /**
+     * Give back a slot once its player is gone for good.
+     */
+    public synchronized void release(int slot)
+    {
+        if (getUsername(slot) == 0L)
+        {
+            // Already free.
+            return;
+        }
+        data.putLong(usernames + slot * USERNAME_SIZE, 0L);
+        free[freeCount++] = slot;
+    }
+
+    private void clear(int slot)
+    {
+        data.putInt(xs + slot * POSITION_SIZE, 0);
+        data.putInt(ys + slot * POSITION_SIZE, 0);
+        data.put(planes + slot * PLANE_SIZE, (byte) 0);
+        data.putInt(flags + slot * FLAGS_SIZE, 0);
+        for (int i = 0; i < SKILL_COUNT; i++)
+        {
+            data.put(skillLevels + slot * SKILL_LEVEL_SIZE + i, (byte) 0);
+            data.putInt(skillXps + slot * SKILL_XP_SIZE + i * 4, 0);
+        }
+        for (int i = 0; i < INVENTORY_SIZE; i++)
+        {
+            data.putInt(items + slot * ITEM_SIZE + i * 4, -1);
+            data.putInt(itemAmounts + slot * ITEM_SIZE + i * 4, 0);
+        }
+    }
+
+    /**
+     * @return  The encoded name of the player in a slot, or 0 if it's free.
+     */
+    public long getUsername(int slot)
+    {
+        return data.getLong(usernames + checkSlot(slot) * USERNAME_SIZE);
+    }
+
+    public int getX(int slot)
+    {
+        return data.getInt(xs + checkSlot(slot) * POSITION_SIZE);
+    }
+
+    public int getY(int slot)
+    {
+        return data.getInt(ys + checkSlot(slot) * POSITION_SIZE);
+    }
+
+    public int getPlane(int slot)
+    {
+        return data.get(planes + checkSlot(slot) * PLANE_SIZE);
+    }
+
+    public void setPosition(int slot, int x, int y, int plane)
+    {
+        checkSlot(slot);
+        data.putInt(xs + slot * POSITION_SIZE, x);
+        data.putInt(ys + slot * POSITION_SIZE, y);
+        data.put(planes + slot * PLANE_SIZE, (byte) plane);
+    }
+
+    public int getFlags(int slot)
+    {
+        return data.getInt(flags + checkSlot(slot) * FLAGS_SIZE);
+    }
+
+    public void setFlags(int slot, int value)
+    {
+        data.putInt(flags + checkSlot(slot) * FLAGS_SIZE, value);
+    }
+
+    public int getSkillLevel(int slot, int skill)
+    {
+        return data.get(skillLevels + checkSlot(slot) * SKILL_LEVEL_SIZE + checkSkill(skill)) & 0xFF;
+    }
+
+    public int getSkillXp(int slot, int skill)
+    {
+        return data.getInt(skillXps + checkSlot(slot) * SKILL_XP_SIZE + checkSkill(skill) * 4);
+    }
+
+    public void setSkill(int slot, int skill, int level, int xp)
+    {
+        checkSlot(slot);
+        checkSkill(skill);
+        data.put(skillLevels + slot * SKILL_LEVEL_SIZE + skill, (byte) level);
+        data.putInt(skillXps + slot * SKILL_XP_SIZE + skill * 4, xp);
+    }
+
+    /**
+     * @return  ID of the item in an inventory spot, or -1 if it's empty.
+     */
+    public int getItem(int slot, int index)
+    {
+        return data.getInt(items + checkSlot(slot) * ITEM_SIZE + checkItem(index) * 4);
+    }
+
+    public int getItemAmount(int slot, int index)
+    {
+        return data.getInt(itemAmounts + checkSlot(slot) * ITEM_SIZE + checkItem(index) * 4);
+    }
+
+    public void setItem(int slot, int index, int id, int amount)
+    {
+        checkSlot(slot);
+        checkItem(index);
+        data.putInt(items + slot * ITEM_SIZE + index * 4, id);
+        data.putInt(itemAmounts + slot * ITEM_SIZE + index * 4, amount);
+    }
+
+    /**
+     * Copy every player's state in one go, e.g. to save it or to build
+     * updates from on another thread while the game loop carries on.
+     *
+     * @param dst   Buffer with at least {@link #getSnapshotSize()} bytes remaining.
+     */
+    public void snapshot(ByteBuffer dst)
+    {
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        dst.put(src);
+    }
+
+    /**
+     * @return  Size in bytes of a {@link #snapshot(ByteBuffer)}.
+     */
+    public int getSnapshotSize()
+    {
+        return data.capacity();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    private int checkSlot(int slot)
+    {
+        if (slot < 1 || slot > capacity)
+        {
+            throw new IndexOutOfBoundsException("Player slot " + slot);
+        }
+        return slot;
+    }
+
+    private static int checkSkill(int skill)
+    {
+        if (skill < 0 || skill >= SKILL_COUNT)
+        {
+            throw new IndexOutOfBoundsException("Skill " + skill);
+        }
+        return skill;
+    }
+
+    private static int checkItem(int index)
+    {
+        if (index < 0 || index >= INVENTORY_SIZE)
+        {
+            throw new IndexOutOfBoundsException("Inventory index " + index);
+        }
+        return index;
+    }
+
+}
@@ -1,31 +1,75 @@
 package com.connergdavis.rsps;
 
+import com.connergdavis.rsps.update.ArchiveCache;
+import com.connergdavis.rsps.update.CacheRevision;
+import com.connergdavis.rsps.update.CacheWatcher;
+import com.connergdavis.rsps.update.UpdateServer;
+import com.connergdavis.rsps.update.UpdateTables;
 import net.openrs.cache.Cache;
-import net.openrs.cache.ChecksumTable;
 import net.openrs.cache.FileStore;
 
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.net.InetSocketAddress;
-import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Entry point and place to store generic constants like the
  * game revision we're operating on, or the RSA cryption components.
  *
+ * Also home to everything the worlds hosted by this process share, most
+ * importantly the cache, which is only ever opened and indexed once no
+ * matter how many worlds there are.
+ *
  * @author Conner Davis <connergdavis@gmail.com>
  */
 public final class Server
 {
 
-    static ServerSocketChannel serverChannel;
+    private static final List<World> worlds = new ArrayList<>();
+    /**
+     * The cache (special thanks to devs of OpenRS cache library for this!)
+     * and everything precomputed from it, like the checksum and reference
+     * tables every client asks for first and the archives the update server
+     * keeps ready to write.  Replaced as a whole whenever the cache changes.
+     */
+    private static volatile CacheRevision revision;
+    /**
+     * Closes the stores of revisions we've replaced, once whatever was still
+     * reading from them has had time to finish.
+     */
+    private static final ScheduledExecutorService retired = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "cache-retirer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    private static UpdateServer updateServer;
+    private static ServerConfig config;
     /**
-     * Special thanks to devs of OpenRS cache library for this!
+     * While draining we refuse new logins, but keep serving the cache and
+     * everyone who's already in game.  Used ahead of restarts so players
+     * don't all reconnect to a server that's about to go away.
      */
-    private static Cache cache;
+    private static volatile boolean draining;
+    private static final AtomicBoolean shuttingDown = new AtomicBoolean();
 
     /**
      * The revision of the game client & cache we're working with.
@@ -36,41 +80,357 @@ public final class Server
      * RSA private keypair used to decrypt the data sent by remote
      * peers during login that is really sensitive.
      */
-    public static final BigInteger RSA_MODULUS = new BigInteger("");
-    public static final BigInteger RSA_EXPONENT = new BigInteger("");
+    private static RsaKey rsaKey;
 
     public static void main(String[] args)
     {
+        long start = System.currentTimeMillis();
+
         try
         {
-            serverChannel = ServerSocketChannel.open();
-            serverChannel.configureBlocking(true);
-            serverChannel.socket().bind(new InetSocketAddress(43594));
-
-            System.out.println("Listening on port 43594.");
+            config = ServerConfig.load(args);
+            if (!config.isUpdateServerOnly())
+            {
+                rsaKey = config.getRsaKey();
+                if (!rsaKey.hasCrt())
+                {
+                    System.out.println("RSA key has no CRT components, logins will decrypt slowly.");
+                }
+            }
+            if (config.isStatsEnabled() && !PeerStats.enable())
+            {
+                System.out.println("This JVM can't measure allocations per thread, peer stats won't include them.");
+            }
+            updateServer = new UpdateServer(config.getUpdateThreads(), config.getUpdateMaxSessions(),
+                config.getUpdateShaper(), config.getUpdateSocketPolicy());
         }
-        catch (IOException e)
+        catch (Exception e)
         {
             e.printStackTrace();
             System.exit(1);
         }
 
+        /*
+         Opening the cache, hashing its reference tables and binding the sockets
+         don't depend on each other (apart from the checksums needing the cache),
+         so do them all at once to get the worlds back up as fast as possible.
+         */
+        ExecutorService startup = Executors.newFixedThreadPool(config.getStartupThreads());
         try
         {
-            cache = new Cache(FileStore.open(new File("C:/.jagex_cache_32/runescape")));
+            List<Future<World>> binds = new ArrayList<>();
+            Map<Integer, Integer> hosted = config.isUpdateServerOnly()
+                ? Collections.<Integer, Integer>emptyMap()
+                : config.getWorlds();
+            for (Map.Entry<Integer, Integer> entry : hosted.entrySet())
+            {
+                final World world = new World(entry.getKey(), entry.getValue());
+                binds.add(startup.submit(new Callable<World>()
+                {
+                    @Override
+                    public World call() throws IOException
+                    {
+                        world.bind();
+                        return world;
+                    }
+                }));
+            }
+            Future<?> bindUpdate = startup.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    // On its own the update server has nobody to serve unless it listens.
+                    if (config.isUpdateServerOnly() || config.getUpdatePort() != 0)
+                    {
+                        updateServer.bind(config.getUpdatePort());
+                    }
+                    return null;
+                }
+            });
+            final Future<Cache> open = startup.submit(new Callable<Cache>()
+            {
+                @Override
+                public Cache call() throws IOException
+                {
+                    return new Cache(FileStore.open(new File(config.getCachePath())));
+                }
+            });
+            Future<UpdateTables> tables = startup.submit(new Callable<UpdateTables>()
+            {
+                @Override
+                public UpdateTables call() throws Exception
+                {
+                    return UpdateTables.build(open.get());
+                }
+            });
+            for (Future<World> bind : binds)
+            {
+                worlds.add(bind.get());
+            }
+            bindUpdate.get();
+            // Archives are read on demand until the warmer gets to them, so nobody waits on it.
+            Cache cache = open.get();
+            revision = new CacheRevision(cache, tables.get(),
+                new ArchiveCache(cache.getStore(), config.getArchiveCacheBudget()));
         }
         catch (Exception e)
         {
             e.printStackTrace();
             System.exit(1);
         }
+        finally
+        {
+            startup.shutdown();
+        }
+
+        System.out.printf("Started %d worlds in %dms.\n", worlds.size(), System.currentTimeMillis() - start);
+        updateServer.start();
+
+        final ArchiveCache archives = revision.getArchives();
+        Thread warmer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                warmArchiveCache(archives);
+            }
+        }, "archive-warmer");
+        warmer.setDaemon(true);
+        warmer.start();
+
+        Thread watcher = new Thread(new CacheWatcher(Paths.get(config.getCachePath()), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reloadCache();
+            }
+        }), "cache-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                shutdown();
+            }
+        }, "shutdown"));
+
+        Thread console = new Thread(new Console(), "console");
+        console.setDaemon(true);
+        console.start();
+
+        for (World world : worlds)
+        {
+            world.start();
+        }
+    }
+
+    /**
+     * Bring the server down gracefully: stop accepting, log out everyone
+     * who's in game, let in-progress responses finish writing and then wait
+     * (up to a limit) for every peer to go away, reporting as we go.
+     *
+     * Only the first call does anything.
+     */
+    static void shutdown()
+    {
+        if (!shuttingDown.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        draining = true;
+        System.out.printf("Shutting down, %d peers connected.\n", getPeerCount());
+
+        for (World world : worlds)
+        {
+            world.close();
+        }
 
-        new Thread(new Acceptor()).start();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getShutdownTimeout());
+        try
+        {
+            while (getPeerCount() > 0 && System.currentTimeMillis() < deadline)
+            {
+                System.out.printf("Waiting on %d peers to disconnect...\n", getPeerCount());
+                Thread.sleep(1000);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (getPeerCount() > 0)
+        {
+            System.out.printf("Gave up waiting on %d peers.\n", getPeerCount());
+        }
+
+        for (World world : worlds)
+        {
+            world.stop();
+        }
+        updateServer.stop();
+        close(revision.getCache());
+
+        System.out.println("Shutdown complete.");
+    }
+
+    /**
+     * Open the cache on disk again as a new revision and swap it in, without
+     * interrupting anyone who's downloading from the old one.
+     *
+     * The new revision is staged completely before it's swapped in: its
+     * reference tables are compared against the ones we have, only the
+     * indices that changed are hashed again, and the ready-to-write archives
+     * are carried over unless their CRC or version changed.  The old store
+     * stays open for a while afterwards, so requests that picked up the old
+     * revision just before the swap can still be answered from it.
+     *
+     * The files are only read once nothing has written to them for a moment,
+     * and if they changed anyway while we were reading, the new revision is
+     * thrown away; the watcher will have noticed and tries again.  Whatever
+     * goes wrong, we keep serving the revision we had.
+     */
+    static synchronized void reloadCache()
+    {
+        final CacheRevision old = revision;
+        Path directory = Paths.get(config.getCachePath());
+        Cache reloaded = null;
+        try
+        {
+            String settled = CacheWatcher.awaitSettled(directory);
+            reloaded = new Cache(FileStore.open(directory.toFile()));
+            UpdateTables tables = old.getTables().update(reloaded);
+            ArchiveCache archives = old.getArchives().update(reloaded.getStore(), old.getTables(), tables);
+            int kept = archives.getCount();
+            archives.warm(config.getWarmupIndices());
+            if (!CacheWatcher.fingerprint(directory).equals(settled))
+            {
+                throw new IOException("Cache changed on disk while it was being reloaded");
+            }
+
+            revision = new CacheRevision(reloaded, tables, archives);
+
+            System.out.printf("Cache changed on disk, rebuilt %d reference tables and kept %d of %d archives.\n",
+                tables.getRebuiltCount(), kept, old.getArchives().getCount());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Keep serving what we had, it's better than nothing.  A half written cache
+            // is as likely to fail decoding as it is to fail reading.
+            e.printStackTrace();
+            close(reloaded);
+            return;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            close(reloaded);
+            return;
+        }
+
+        retired.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                close(old.getCache());
+            }
+        }, config.getCacheGracePeriod(), TimeUnit.SECONDS);
+    }
+
+    private static void close(Cache cache)
+    {
+        if (cache == null)
+        {
+            return;
+        }
+
+        try
+        {
+            cache.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Preload the files that every new client asks for, so a download storm
+     * after a restart is served from memory.  Runs in the background once the
+     * worlds are up, since anything it hasn't reached yet is read on demand.
+     */
+    private static void warmArchiveCache(ArchiveCache archives)
+    {
+        long start = System.currentTimeMillis();
+        try
+        {
+            int loaded = archives.warm(config.getWarmupIndices());
+            System.out.printf("Preloaded %d archives (%dKB) for the update server in %dms.\n",
+                loaded, archives.getSize() / 1024, System.currentTimeMillis() - start);
+        }
+        catch (IOException e)
+        {
+            // Whatever we didn't get to is still read when it's asked for.
+            e.printStackTrace();
+        }
+    }
+
+    public static CacheRevision getRevision()
+    {
+        return revision;
+    }
+
+    public static UpdateServer getUpdateServer()
+    {
+        return updateServer;
+    }
+
+    /**
+     * @return  How many peers are connected across all of our worlds.
+     */
+    private static int getPeerCount()
+    {
+        int count = 0;
+        for (World world : worlds)
+        {
+            count += world.getSessions().size();
+        }
+        return count;
+    }
+
+    public static List<World> getWorlds()
+    {
+        return Collections.unmodifiableList(worlds);
+    }
+
+    public static boolean isDraining()
+    {
+        return draining;
+    }
+
+    static void setDraining(boolean draining)
+    {
+        if (!shuttingDown.get())
+        {
+            Server.draining = draining;
+        }
+    }
+
+    public static ServerConfig getConfig()
+    {
+        return config;
     }
 
-    public static Cache getCache()
+    public static RsaKey getRsaKey()
     {
-        return cache;
+        return rsaKey;
     }
 
 }
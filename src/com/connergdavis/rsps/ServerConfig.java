@@ -0,0 +1,444 @@
+package com.connergdavis.rsps;
+
+import com.connergdavis.rsps.update.BandwidthShaper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Everything about a world that used to be hardcoded into {@link Server},
+ * like the port we listen on or where the cache lives.
+ *
+ * Values are read from a plain properties file (by default
+ * <code>server.properties</code> in the working directory, or whatever
+ * <code>--config=path</code> points at) and can then be overridden one
+ * by one from the command line with <code>--key=value</code>, which makes
+ * it easy to run several worlds on one host from the same file.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class ServerConfig
+{
+
+    /**
+     * Used when nobody tells us which file to read.  It's fine if it
+     * doesn't exist, we'll just run on the defaults.
+     */
+    private static final String DEFAULT_FILE = "server.properties";
+
+    private final Properties properties = new Properties();
+
+    private ServerConfig()
+    {
+    }
+
+    /**
+     * Builds the configuration from the file named by <code>--config</code>
+     * (or the default file) and then applies every other <code>--key=value</code>
+     * argument on top of it.
+     *
+     * @param args  Command line arguments given to {@link Server#main(String[])}.
+     * @return      The finished configuration.
+     * @throws IOException  If the config file exists but couldn't be read, or an
+     *                      argument isn't in <code>--key=value</code> form.
+     */
+    public static ServerConfig load(String[] args) throws IOException
+    {
+        ServerConfig config = new ServerConfig();
+        Properties overrides = new Properties();
+        String path = null;
+
+        for (String arg : args)
+        {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split == -1)
+            {
+                throw new IOException("Expected --key=value but got [" + arg + "]");
+            }
+
+            String key = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            if (key.equals("config"))
+            {
+                path = value;
+            }
+            else
+            {
+                overrides.setProperty(key, value);
+            }
+        }
+
+        File file = new File(path == null ? DEFAULT_FILE : path);
+        if (file.isFile())
+        {
+            try (InputStream in = new FileInputStream(file))
+            {
+                config.properties.load(in);
+            }
+        }
+        else if (path != null)
+        {
+            throw new IOException("Config file [" + path + "] does not exist");
+        }
+
+        config.properties.putAll(overrides);
+        return config;
+    }
+
+    /**
+     * @return  The port our world listens on for new peers, when we only host one.
+     */
+    public int getPort()
+    {
+        return getInt("port", 43594);
+    }
+
+    /**
+     * Which worlds this process hosts and on which ports, given as
+     * <code>worlds=1:43594,2:43595</code>.  Without it we host a single
+     * world 1 on {@link #getPort()}.
+     *
+     * @return  Ports keyed by world ID, in the order they were given.
+     */
+    public Map<Integer, Integer> getWorlds()
+    {
+        Map<Integer, Integer> worlds = new LinkedHashMap<>();
+        Set<Integer> ports = new HashSet<>();
+        String value = properties.getProperty("worlds");
+        if (value == null || value.trim().isEmpty())
+        {
+            worlds.put(1, getPort());
+            return worlds;
+        }
+
+        for (String world : value.split(","))
+        {
+            String[] parts = world.trim().split(":");
+            try
+            {
+                if (parts.length != 2 || worlds.put(Integer.parseInt(parts[0].trim()),
+                    Integer.parseInt(parts[1].trim())) != null)
+                {
+                    throw new IllegalArgumentException("Config key [worlds] has a bad or duplicate entry [" + world + "]");
+                }
+
+                // With SO_REUSEPORT two worlds could both bind it, and the kernel would split players between them.
+                int port = Integer.parseInt(parts[1].trim());
+                if (port != 0 && !ports.add(port))
+                {
+                    throw new IllegalArgumentException("Config key [worlds] gives port " + port + " to more than one world");
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Config key [worlds] must look like 1:43594,2:43595, got [" + value + "]");
+            }
+        }
+        return worlds;
+    }
+
+    /**
+     * @return  The directory that holds the cache's main_file_cache.* files.
+     */
+    public String getCachePath()
+    {
+        return getString("cache.path", "C:/.jagex_cache_32/runescape");
+    }
+
+    /**
+     * @return  How many seconds the old cache stays open after an updated one
+     *          is swapped in, so downloads already started from it can finish.
+     */
+    public int getCacheGracePeriod()
+    {
+        return getInt("cache.grace", 60);
+    }
+
+    /**
+     * The RSA private key, preferably loaded with all of its CRT components
+     * from the file named by <code>rsa.key</code>.  Otherwise it's built from
+     * just <code>rsa.modulus</code> and <code>rsa.exponent</code>.
+     *
+     * @return              The server's RSA private key.
+     * @throws IOException  If the key file couldn't be loaded.
+     */
+    public RsaKey getRsaKey() throws IOException
+    {
+        String file = getString("rsa.key", "");
+        if (!file.isEmpty())
+        {
+            return RsaKey.load(new File(file));
+        }
+        return new RsaKey(getBigInteger("rsa.modulus"), getBigInteger("rsa.exponent"));
+    }
+
+    /**
+     * @return  True if this process runs nothing but the update server, on
+     *          {@link #getUpdatePort()}, and hosts no worlds at all.
+     */
+    public boolean isUpdateServerOnly()
+    {
+        String mode = getString("mode", "game");
+        if (!mode.equals("game") && !mode.equals("update"))
+        {
+            throw new IllegalArgumentException("Config key [mode] must be game or update, got [" + mode + "]");
+        }
+        return mode.equals("update");
+    }
+
+    /**
+     * @return  Port the update server accepts clients on by itself, or 0 if it
+     *          only serves clients handed over by our worlds.  When running as
+     *          nothing but an update server it has to accept by itself, so 0
+     *          (or leaving it out) means {@link #getPort()} instead.
+     */
+    public int getUpdatePort()
+    {
+        int port = getInt("update.port", 0);
+        if (isUpdateServerOnly())
+        {
+            return port == 0 ? getPort() : port;
+        }
+
+        if (port != 0 && getWorlds().containsValue(port))
+        {
+            throw new IllegalArgumentException("Config key [update.port] is already a world's port, " + port);
+        }
+        return port;
+    }
+
+    /**
+     * @return  How many threads the update server serves its clients with.
+     */
+    public int getUpdateThreads()
+    {
+        return getInt("update.threads", 1);
+    }
+
+    /**
+     * @return  The most clients the update server will serve at once.
+     */
+    public int getUpdateMaxSessions()
+    {
+        return getInt("update.max", 4000);
+    }
+
+    /**
+     * @return  Limits on how fast the update server sends files, configured in
+     *          kilobytes per second for everything it sends, for answers to
+     *          background requests and for each client.  0 means no limit.
+     */
+    public BandwidthShaper getUpdateShaper()
+    {
+        return new BandwidthShaper(getInt("update.rate.global", 0) * 1024L,
+            getInt("update.rate.background", 0) * 1024L,
+            getInt("update.rate.peer", 0) * 1024L);
+    }
+
+    /**
+     * @return  Socket options for peers connecting to a world: Nagle off and a
+     *          small send buffer, since in-game packets are tiny and latency matters.
+     */
+    public SocketPolicy getGameSocketPolicy()
+    {
+        return new SocketPolicy(Boolean.parseBoolean(getString("socket.game.nodelay", "true")),
+            getInt("socket.game.sndbuf", 16 * 1024), getInt("socket.backlog", 1024),
+            Boolean.parseBoolean(getString("socket.reuseaddr", "true")), getInt("socket.acceptors", 1));
+    }
+
+    /**
+     * @return  Socket options for update server clients: a big send buffer and Nagle
+     *          left alone, since they're downloading whole files.  Applied both to
+     *          clients of the update port and to those handed over by a world.
+     */
+    public SocketPolicy getUpdateSocketPolicy()
+    {
+        return new SocketPolicy(Boolean.parseBoolean(getString("socket.update.nodelay", "false")),
+            getInt("socket.update.sndbuf", 256 * 1024), getInt("socket.backlog", 1024),
+            Boolean.parseBoolean(getString("socket.reuseaddr", "true")), getInt("socket.acceptors", 1));
+    }
+
+    /**
+     * @return  How many threads are used to open the cache, precompute its
+     *          checksums and bind the server socket all at the same time.
+     */
+    public int getStartupThreads()
+    {
+        return getInt("startup.threads", 4);
+    }
+
+    /**
+     * @return  Size in bytes of the buffer each {@link Peer} reads into.
+     */
+    public int getPeerBufferSize()
+    {
+        return getInt("peer.buffer", 8192);
+    }
+
+    /**
+     * @return  The most peers we'll let be connected to each world at once.
+     */
+    public int getMaxPeers()
+    {
+        return getInt("peer.max", 2000);
+    }
+
+    /**
+     * @return  How many in-game packets from a peer can wait for the game thread
+     *          before we decide they're flooding us and disconnect them.
+     */
+    public int getPacketQueueSize()
+    {
+        return getInt("packets.queue", 64);
+    }
+
+    /**
+     * @return  The most in-game packets handled for each peer per tick.
+     */
+    public int getPacketsPerTick()
+    {
+        return getInt("packets.tick", 10);
+    }
+
+    /**
+     * @return  Whether each world keeps its {@link PlayerStore} outside the Java heap.
+     */
+    public boolean isPlayerStoreOffHeap()
+    {
+        return Boolean.parseBoolean(getString("players.offheap", "false"));
+    }
+
+    /**
+     * @return  How many seconds a player whose connection dropped keeps their place
+     *          in the world, so that reconnecting doesn't mean loading them again.
+     *          0 releases them straight away.
+     */
+    public int getResumeGrace()
+    {
+        return getInt("resume.grace", 30);
+    }
+
+    /**
+     * @return  Whether players are given a token at login that lets them resume
+     *          without the RSA block.  Only for clients patched to understand it,
+     *          the stock client would choke on the extra bytes.
+     */
+    public boolean isResumeTokensEnabled()
+    {
+        return Boolean.parseBoolean(getString("resume.tokens", "false"));
+    }
+
+    /**
+     * @return  Whether to keep track of what each peer costs us, for the console's
+     *          <code>top</code> command.  Off by default since it isn't free.
+     */
+    public boolean isStatsEnabled()
+    {
+        return Boolean.parseBoolean(getString("stats.enabled", "false"));
+    }
+
+    /**
+     * @return  How many seconds a shutdown waits for peers to disconnect before giving up.
+     */
+    public int getShutdownTimeout()
+    {
+        return getInt("shutdown.timeout", 30);
+    }
+
+    /**
+     * @return  The most bytes of ready-to-send archives the update server keeps in memory.
+     */
+    public long getArchiveCacheBudget()
+    {
+        return getInt("update.cache.mb", 256) * 1024L * 1024L;
+    }
+
+    /**
+     * @return  Indices preloaded into the archive cache after startup, because every
+     *          fresh client downloads them before it can even show the login screen
+     *          (configs, interfaces, sprites, binaries, client scripts and fonts.)
+     */
+    public int[] getWarmupIndices()
+    {
+        return getIntArray("update.warmup", new int[] { 2, 3, 8, 10, 12, 13 });
+    }
+
+    String getString(String key, String defaultValue)
+    {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    int getInt(String key, int defaultValue)
+    {
+        String value = properties.getProperty(key);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Config key [" + key + "] must be a number, got [" + value + "]");
+        }
+    }
+
+    int[] getIntArray(String key, int[] defaultValue)
+    {
+        String value = properties.getProperty(key);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        if (value.trim().isEmpty())
+        {
+            return new int[0];
+        }
+
+        String[] parts = value.split(",");
+        int[] values = new int[parts.length];
+        try
+        {
+            for (int i = 0; i < parts.length; i++)
+            {
+                values[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Config key [" + key + "] must be a list of numbers, got [" + value + "]");
+        }
+        return values;
+    }
+
+    BigInteger getBigInteger(String key)
+    {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty())
+        {
+            throw new IllegalArgumentException("Config key [" + key + "] is required");
+        }
+
+        try
+        {
+            return new BigInteger(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Config key [" + key + "] must be a decimal number");
+        }
+    }
+
+}
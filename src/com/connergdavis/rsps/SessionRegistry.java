@@ -0,0 +1,74 @@
+package com.connergdavis.rsps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every {@link Peer} that is currently connected to us, whether they
+ * are just downloading the cache or already in game.  We need to know
+ * who they are in order to turn people away once we're full, and to
+ * be able to say goodbye to all of them when the server shuts down.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class SessionRegistry
+{
+
+    private final Set<Peer> peers = Collections.newSetFromMap(new ConcurrentHashMap<Peer, Boolean>());
+    /**
+     * How many peers we have, or have promised a place to.  Kept apart from
+     * the set so that several acceptors can't all see room for one more.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Add a peer, unless that would make more than we're allowed.
+     *
+     * @param peer  The newly connected peer.
+     * @param max   The most peers there may be.
+     * @return      True if the peer was added.
+     */
+    boolean add(Peer peer, int max)
+    {
+        int current;
+        do
+        {
+            current = count.get();
+            if (current >= max)
+            {
+                return false;
+            }
+        }
+        while (!count.compareAndSet(current, current + 1));
+
+        peers.add(peer);
+        return true;
+    }
+
+    void remove(Peer peer)
+    {
+        if (peers.remove(peer))
+        {
+            count.decrementAndGet();
+        }
+    }
+
+    int size()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return  Copy of the connected peers that's safe to loop over while
+     *          peers keep coming and going.
+     */
+    List<Peer> snapshot()
+    {
+        return new ArrayList<>(peers);
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.connergdavis.rsps;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Socket options for one stage of a connection, since what's best depends
+ * on what it's used for.  In-game traffic is lots of tiny packets where every
+ * millisecond counts, so Nagle is turned off and the send buffer kept small;
+ * the update server sends whole files and wants big buffers instead.
+ *
+ * It also decides how a port is listened on: the accept backlog, whether
+ * the address can be reused straight after a restart, and how many threads
+ * accept on it.  With more than one, each gets a socket of its own bound
+ * with SO_REUSEPORT where the OS and JVM support it (Linux on Java 9 and up),
+ * so the kernel spreads a reconnect storm over all of them.
+ *
+ * SO_REUSEPORT would just as happily let another process (say, a second copy
+ * of the server started by mistake) bind the same port and take a share of
+ * the players, so before binding with it we check nobody else has the port.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class SocketPolicy
+{
+
+    private final boolean noDelay;
+    private final int sendBuffer;
+    private final int backlog;
+    private final boolean reuseAddress;
+    private final int acceptors;
+
+    /**
+     * @param noDelay       Whether to turn Nagle's algorithm off.
+     * @param sendBuffer    Send buffer size in bytes, or 0 to leave it to the OS.
+     * @param backlog       How many connections can wait to be accepted, or 0 for the default.
+     * @param reuseAddress  Whether to set SO_REUSEADDR on listening sockets.
+     * @param acceptors     How many threads accept connections on each port.
+     */
+    public SocketPolicy(boolean noDelay, int sendBuffer, int backlog, boolean reuseAddress, int acceptors)
+    {
+        this.noDelay = noDelay;
+        this.sendBuffer = sendBuffer;
+        this.backlog = backlog;
+        this.reuseAddress = reuseAddress;
+        this.acceptors = Math.max(1, acceptors);
+    }
+
+    /**
+     * Set our options on a newly accepted connection, or one that just moved
+     * on to this stage.
+     *
+     * @param channel       The connection.
+     * @throws IOException  If the options couldn't be set, usually because it's closed.
+     */
+    public void apply(SocketChannel channel) throws IOException
+    {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+        if (sendBuffer > 0)
+        {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+        }
+    }
+
+    /**
+     * Start listening on a port, with a socket for each acceptor if the port
+     * can be shared with SO_REUSEPORT, or just one they all accept from if not.
+     *
+     * @param port          The port to listen on, or 0 for any.
+     * @return              The listening sockets, in blocking mode.
+     * @throws IOException  If the port couldn't be bound.
+     */
+    public List<ServerSocketChannel> bind(int port) throws IOException
+    {
+        List<ServerSocketChannel> channels = new ArrayList<>();
+        if (acceptors > 1)
+        {
+            port = claim(port);
+        }
+        try
+        {
+            do
+            {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channels.add(channel);
+                channel.configureBlocking(true);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+
+                SocketOption<Boolean> reusePort = acceptors > 1 ? getReusePort(channel) : null;
+                if (reusePort != null)
+                {
+                    channel.setOption(reusePort, true);
+                }
+                else if (acceptors > 1)
+                {
+                    System.out.printf("SO_REUSEPORT isn't supported here, %d acceptors will share one socket.\n",
+                        acceptors);
+                }
+                channel.bind(new InetSocketAddress(port), backlog);
+
+                // If we were given any port, the rest have to join whichever one we got.
+                port = channel.socket().getLocalPort();
+                if (reusePort == null)
+                {
+                    break;
+                }
+            }
+            while (channels.size() < acceptors);
+        }
+        catch (IOException e)
+        {
+            for (ServerSocketChannel channel : channels)
+            {
+                channel.close();
+            }
+            throw e;
+        }
+        return channels;
+    }
+
+    /**
+     * Make sure no one else is listening on a port, by briefly binding it
+     * without SO_REUSEPORT.  That fails if anyone has it, even if they share
+     * it with SO_REUSEPORT themselves, which binding with it wouldn't notice.
+     *
+     * @param port          The port we want, or 0 for any.
+     * @return              The port, which is free for us to bind.
+     * @throws IOException  If someone else is already listening on it.
+     */
+    private int claim(int port) throws IOException
+    {
+        try (ServerSocketChannel probe = ServerSocketChannel.open())
+        {
+            probe.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+            probe.bind(new InetSocketAddress(port));
+            return probe.socket().getLocalPort();
+        }
+    }
+
+    /**
+     * @return  How many threads should accept connections on each port.
+     */
+    public int getAcceptors()
+    {
+        return acceptors;
+    }
+
+    /**
+     * SO_REUSEPORT only exists as a constant from Java 9, so look for it by
+     * name to keep running (with a single socket) on Java 8.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePort(ServerSocketChannel channel)
+    {
+        for (SocketOption<?> option : channel.supportedOptions())
+        {
+            if (option.name().equals("SO_REUSEPORT") && option.type() == Boolean.class)
+            {
+                return (SocketOption<Boolean>) option;
+            }
+        }
+        return null;
+    }
+
+}
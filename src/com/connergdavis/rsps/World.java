@@ -0,0 +1,251 @@
+package com.connergdavis.rsps;
+
+import com.connergdavis.rsps.handler.game.GamePacket;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single game world.  One server process can host several of these,
+ * each on its own port with its own peers and game loop, while they all
+ * share the cache and everything precomputed from it through {@link Server}.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class World
+{
+
+    /**
+     * How often the game loop runs, in milliseconds.
+     */
+    public static final int TICK_RATE = 600;
+
+    private final int id;
+    private final int port;
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final PlayerStore players;
+    private final SocketPolicy socketPolicy;
+    private final ParkedSessions parked;
+    private List<ServerSocketChannel> serverChannels;
+    private ScheduledExecutorService ticker;
+    private volatile long ticks;
+    /**
+     * How many in-game packets the game loop has handled, across all peers.
+     */
+    private volatile long packetsHandled;
+
+    World(int id, int port)
+    {
+        this.id = id;
+        this.port = port;
+        this.players = new PlayerStore(Server.getConfig().getMaxPeers(),
+            Server.getConfig().isPlayerStoreOffHeap());
+        this.socketPolicy = Server.getConfig().getGameSocketPolicy();
+        this.parked = new ParkedSessions(players, TimeUnit.SECONDS.toMillis(Server.getConfig().getResumeGrace()),
+            Server.getConfig().isResumeTokensEnabled());
+    }
+
+    /**
+     * Open this world's server socket.  Done separately from {@link #start()}
+     * so that every world can be bound while the cache is still loading.
+     *
+     * @throws IOException  If the port couldn't be bound.
+     */
+    void bind() throws IOException
+    {
+        serverChannels = socketPolicy.bind(port);
+    }
+
+    /**
+     * Start accepting peers and running the game loop.
+     */
+    void start()
+    {
+        ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, "world-" + id + "-tick");
+            }
+        });
+        ticker.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                tick();
+            }
+        }, TICK_RATE, TICK_RATE, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < socketPolicy.getAcceptors(); i++)
+        {
+            new Thread(new Acceptor(this, serverChannels.get(i % serverChannels.size())),
+                "world-" + id + "-acceptor-" + i).start();
+        }
+        System.out.printf("World %d listening on port %d.\n", id, port);
+    }
+
+    /**
+     * Let a newly connected peer into this world, on a thread of its own,
+     * unless the world already has as many peers as it's allowed.
+     *
+     * @param channel       The peer's channel, which is closed if we're full.
+     * @return              True if the peer was let in.
+     * @throws IOException  If the channel couldn't be set up.
+     */
+    public boolean accept(SocketChannel channel) throws IOException
+    {
+        Peer peer = new Peer(this, channel);
+        if (!sessions.add(peer, Server.getConfig().getMaxPeers()))
+        {
+            // We're full, so don't even bother giving them a thread.
+            channel.close();
+            return false;
+        }
+
+        try
+        {
+            channel.configureBlocking(true);
+            socketPolicy.apply(channel);
+        }
+        catch (IOException e)
+        {
+            sessions.remove(peer);
+            channel.close();
+            throw e;
+        }
+
+        // Create their thread and start reading from them.
+        new Thread(peer).start();
+        return true;
+    }
+
+    /**
+     * One cycle of the game loop.
+     */
+    private void tick()
+    {
+        try
+        {
+            int max = Server.getConfig().getPacketsPerTick();
+            int handled = 0;
+            for (Peer peer : sessions.snapshot())
+            {
+                handled += peer.processPackets(max);
+            }
+            packetsHandled += handled;
+            parked.expire();
+        }
+        catch (Exception e)
+        {
+            // Don't let one bad tick stop the game loop for good.
+            e.printStackTrace();
+        }
+        ticks++;
+    }
+
+    /**
+     * Act on an in-game packet.  Only ever called from the game thread.
+     *
+     * @param peer      The peer who sent it.
+     * @param packet    The packet.
+     */
+    void handle(Peer peer, GamePacket packet)
+    {
+        switch (packet.getId())
+        {
+            case GamePacket.PING:
+            case GamePacket.FOCUS:
+            case GamePacket.MOUSE_CLICK:
+            case GamePacket.MOUSE_MOVE:
+            case GamePacket.CAMERA:
+                // The client sends these all the time, but there's nothing for us to do about them yet.
+                break;
+
+            default:
+                System.out.printf("Unhandled game packet [%d]\n", packet.getId());
+                break;
+        }
+    }
+
+    /**
+     * Stop accepting peers and log out everyone connected to this world.  The
+     * game loop keeps going until {@link #stop()} so that logouts can finish.
+     */
+    void close()
+    {
+        for (ServerSocketChannel serverChannel : serverChannels)
+        {
+            try
+            {
+                serverChannel.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        for (Peer peer : sessions.snapshot())
+        {
+            peer.logout();
+        }
+    }
+
+    void stop()
+    {
+        ticker.shutdown();
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * @return  How many times the game loop has run.
+     */
+    public long getTicks()
+    {
+        return ticks;
+    }
+
+    /**
+     * @return  How many in-game packets the game loop has handled so far.
+     */
+    public long getPacketsHandled()
+    {
+        return packetsHandled;
+    }
+
+    public PlayerStore getPlayers()
+    {
+        return players;
+    }
+
+    /**
+     * @return  Players who dropped and might be back any moment.
+     */
+    ParkedSessions getParkedSessions()
+    {
+        return parked;
+    }
+
+    SessionRegistry getSessions()
+    {
+        return sessions;
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.connergdavis.rsps.handler.game;
+
+import com.connergdavis.rsps.handler.Handler;
+import com.connergdavis.rsps.handler.InvalidStreamException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Any packet sent by a peer that's in game.  Unlike the packets sent
+ * during login, these aren't acted on by the peer's own thread: we only
+ * cut the packet out of the stream here, and then hand it over to the
+ * world's game thread, which does the actual work at its own pace.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class GamePacket implements Handler
+{
+
+    /**
+     * Size of a packet whose length is sent as a byte in front of it.
+     */
+    public static final int VAR_BYTE = -1;
+    /**
+     * Size of a packet whose length is sent as a short in front of it.
+     */
+    public static final int VAR_SHORT = -2;
+    /**
+     * Size of a packet we don't know how to read (yet).
+     */
+    private static final int UNKNOWN = -3;
+
+    /**
+     * Sent every few seconds so the server knows the client is still there.
+     */
+    public static final int PING = 93;
+    /**
+     * The client window gained or lost focus.
+     */
+    public static final int FOCUS = 22;
+    /**
+     * The player clicked somewhere, with where and how long since the last click.
+     */
+    public static final int MOUSE_CLICK = 75;
+    /**
+     * A batch of mouse movements, for the anti-macro heuristics.
+     */
+    public static final int MOUSE_MOVE = 39;
+    /**
+     * The player turned the camera.
+     */
+    public static final int CAMERA = 21;
+
+    /**
+     * Size of the payload of each packet the client can send, by ID.  Only
+     * the ones a 562 client sends while idle so far; anything else is
+     * treated as garbage.
+     */
+    private static final int[] SIZES = new int[256];
+
+    static
+    {
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            SIZES[i] = UNKNOWN;
+        }
+
+        SIZES[PING] = 0;
+        SIZES[FOCUS] = 1;
+        SIZES[MOUSE_CLICK] = 6;
+        SIZES[MOUSE_MOVE] = VAR_BYTE;
+        SIZES[CAMERA] = 4;
+    }
+
+    private final int id;
+    private byte[] payload;
+
+    public GamePacket(int id)
+    {
+        this.id = id;
+    }
+
+    @Override
+    public boolean decode(ByteBuffer buf) throws InvalidStreamException
+    {
+        int size = SIZES[id];
+        if (size == UNKNOWN)
+        {
+            throw new InvalidStreamException("Unknown game packet [" + id + "]");
+        }
+
+        if (size == VAR_BYTE)
+        {
+            if (buf.remaining() < 1)
+            {
+                return false;
+            }
+            size = buf.get() & 0xFF;
+        }
+        else if (size == VAR_SHORT)
+        {
+            if (buf.remaining() < 2)
+            {
+                return false;
+            }
+            size = buf.getShort() & 0xFFFF;
+        }
+
+        if (buf.remaining() < size)
+        {
+            return false;
+        }
+
+        payload = new byte[size];
+        buf.get(payload);
+        return true;
+    }
+
+    @Override
+    public ByteBuffer respond()
+    {
+        return null;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return  The packet's data, without its ID or length.
+     */
+    public ByteBuffer getPayload()
+    {
+        return ByteBuffer.wrap(payload);
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.connergdavis.rsps.handler.login;
 
-import com.connergdavis.rsps.Peer;
+import com.connergdavis.rsps.NameCodec;
+import com.connergdavis.rsps.NulStrings;
 import com.connergdavis.rsps.Server;
 import com.connergdavis.rsps.handler.Handler;
 import com.connergdavis.rsps.handler.InvalidStreamException;
@@ -24,6 +25,22 @@ public final class Login implements Handler
      */
     private final int givenUsernameHash;
     private int[] sessionKeySet;
+    /**
+     * The player's name, still encoded.  See {@link NameCodec}.
+     */
+    private long username;
+    /**
+     * Raw bytes of the password, only the first {@link #passwordLength} count.
+     */
+    private final byte[] password = new byte[MAX_PASSWORD_LENGTH];
+    private int passwordLength;
+
+    /**
+     * The client won't let anyone type a longer password than this.
+     */
+    private static final int MAX_PASSWORD_LENGTH = 20;
+
+    private boolean refused;
 
     public Login(int givenUsernameHash)
     {
@@ -39,7 +56,7 @@ public final class Login implements Handler
         }
 
         int totalLen = buf.getShort() & 0xFFFF;
-        if (buf.remaining() != totalLen)
+        if (buf.remaining() < totalLen)
         {
             return false;
         }
@@ -60,7 +77,7 @@ public final class Login implements Handler
         {
             buf.get();
         }
-        Peer.getNULString(buf);
+        NulStrings.skip(buf);
         buf.getInt();
         buf.getInt();
         buf.getShort();
@@ -71,6 +88,10 @@ public final class Login implements Handler
         // End large amount of information we don't need.
 
         int rsaBlockLen = buf.get() & 0xFF;
+        if (rsaBlockLen == 0)
+        {
+            throw new InvalidStreamException("Empty RSA block");
+        }
         if (buf.remaining() < rsaBlockLen)
         {
             return false;
@@ -86,8 +107,8 @@ public final class Login implements Handler
 
         byte[] encrypted = new byte[rsaBlockLen];
         buf.get(encrypted);
-        ByteBuffer encryptedBuf = ByteBuffer.wrap(new BigInteger(encrypted)
-            .modPow(Server.RSA_EXPONENT, Server.RSA_MODULUS).toByteArray());
+        ByteBuffer encryptedBuf = ByteBuffer.wrap(Server.getRsaKey()
+            .decrypt(new BigInteger(encrypted)).toByteArray());
 
         if ((encryptedBuf.get() & 0xFF) != 10)
         {
@@ -102,10 +123,6 @@ public final class Login implements Handler
         sessionKeySet[1] = (int) clientSessionKey;
         sessionKeySet[2] = (int) (serverSessionKey >> 32);
         sessionKeySet[3] = (int) serverSessionKey;
-        for (int i : sessionKeySet)
-        {
-            i += 50;
-        }
 
         long usernameEncoded = encryptedBuf.getLong();
         long usernameHash = 31 & usernameEncoded >> 16;
@@ -113,22 +130,42 @@ public final class Login implements Handler
         {
             throw new InvalidStreamException("Mismatched username hashes");
         }
-        String username = Peer.longToString(usernameEncoded);
+        if (!NameCodec.isValid(usernameEncoded))
+        {
+            throw new InvalidStreamException("Invalid username");
+        }
+        username = usernameEncoded;
 
-        System.out.printf("Encrypted login request received [%s]\n", username);
+        System.out.printf("Encrypted login request received [%s]\n", NameCodec.toString(username));
 
         // TODO Check if player is already logged in
         // TODO Check if user limit in world has been met already
 
-        String password = Peer.getNULString(encryptedBuf);
+        if ((passwordLength = NulStrings.read(encryptedBuf, password)) == -1)
+        {
+            throw new InvalidStreamException("Password too long");
+        }
         // TODO Load saved player data
 
         return true;
     }
 
+    /**
+     * Turn the player away because the server is about to be updated, which
+     * the client takes as a cue to try again in a little while.
+     */
+    public void refuse()
+    {
+        refused = true;
+    }
+
     @Override
     public ByteBuffer respond()
     {
+        if (refused)
+        {
+            return ByteBuffer.allocate(1).put((byte) LoginRequest.RESPONSE_SERVER_UPDATING);
+        }
         return null;
     }
 
@@ -137,4 +174,9 @@ public final class Login implements Handler
         return sessionKeySet;
     }
 
+    public long getUsername()
+    {
+        return username;
+    }
+
 }
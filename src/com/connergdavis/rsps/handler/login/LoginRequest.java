@@ -1,5 +1,6 @@
 package com.connergdavis.rsps.handler.login;
 
+import com.connergdavis.rsps.Server;
 import com.connergdavis.rsps.handler.Handler;
 import com.connergdavis.rsps.handler.InvalidStreamException;
 
@@ -31,6 +32,13 @@ public final class LoginRequest implements Handler
      */
     private int usernameHash;
 
+    /**
+     * Login response code for "the server is being updated", sent
+     * instead of a session key while we're draining, and instead of
+     * logging in by anyone who gets past that anyway.
+     */
+    public static final int RESPONSE_SERVER_UPDATING = 14;
+
     public LoginRequest()
     {
         serverSessionKey = ((long) (Math.random() * 99999999D) << 32) + (long) (Math.random() * 99999999D);
@@ -39,6 +47,11 @@ public final class LoginRequest implements Handler
     @Override
     public boolean decode(ByteBuffer buf) throws InvalidStreamException
     {
+        if (buf.remaining() < 1)
+        {
+            return false;
+        }
+
         usernameHash = buf.get() & 0xFF;
         return true;
     }
@@ -46,6 +59,12 @@ public final class LoginRequest implements Handler
     @Override
     public ByteBuffer respond()
     {
+        if (Server.isDraining())
+        {
+            // Tells the client that the server is being updated and to try again soon.
+            return ByteBuffer.allocate(1).put((byte) RESPONSE_SERVER_UPDATING);
+        }
+
         ByteBuffer out = ByteBuffer.allocate(9);
         out.put((byte) 0).putLong(serverSessionKey);
         return out;
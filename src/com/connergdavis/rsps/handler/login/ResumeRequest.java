@@ -0,0 +1,82 @@
+package com.connergdavis.rsps.handler.login;
+
+import com.connergdavis.rsps.handler.Handler;
+import com.connergdavis.rsps.handler.InvalidStreamException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sent instead of a login by a client that just lost its connection, with
+ * the resume token it was given when it logged in and an HMAC proving it's
+ * the client that was given it (see {@link #PROOF_LENGTH}).  If the player is
+ * still parked we can put them straight back where they were, without the
+ * RSA block or loading anything.
+ *
+ * This isn't part of the 562 protocol, so only clients patched for it will
+ * ever send it.  Whether it worked is for the peer to decide, since it knows
+ * which players are parked; it tells us with {@link #accept()}.  The next
+ * token follows the response as an in-game packet.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class ResumeRequest implements Handler
+{
+
+    /**
+     * Length of the proof: an HMAC-SHA256, keyed by the ISAAC seeds the session
+     * was started with, over the session key we answered the client's login
+     * request with and the token.
+     */
+    public static final int PROOF_LENGTH = 32;
+    /**
+     * Login response code meaning the player is logged in.
+     */
+    private static final int RESPONSE_LOGGED_IN = 2;
+    /**
+     * Login response code for "login server rejected session", which tells
+     * a patched client to log in the normal way instead.
+     */
+    private static final int RESPONSE_REJECTED = 11;
+
+    private long token;
+    private final byte[] proof = new byte[PROOF_LENGTH];
+    private boolean accepted;
+
+    @Override
+    public boolean decode(ByteBuffer buf) throws InvalidStreamException
+    {
+        if (buf.remaining() < 8 + PROOF_LENGTH)
+        {
+            return false;
+        }
+
+        token = buf.getLong();
+        buf.get(proof);
+        return true;
+    }
+
+    /**
+     * Let the player back in.
+     */
+    public void accept()
+    {
+        accepted = true;
+    }
+
+    @Override
+    public ByteBuffer respond()
+    {
+        return ByteBuffer.allocate(1).put((byte) (accepted ? RESPONSE_LOGGED_IN : RESPONSE_REJECTED));
+    }
+
+    public long getToken()
+    {
+        return token;
+    }
+
+    public byte[] getProof()
+    {
+        return proof;
+    }
+
+}
@@ -12,6 +12,14 @@ import java.nio.ByteBuffer;
 public final class UpdateServerHandshake implements Handler
 {
 
+    /**
+     * Response to a handshake from a client built for another revision, after
+     * which the client tells the player to update and we hang up.
+     */
+    public static final int RESPONSE_OUT_OF_DATE = 6;
+
+    private boolean outOfDate;
+
     @Override
     public boolean decode(ByteBuffer buf) throws InvalidStreamException
     {
@@ -22,6 +30,7 @@ public final class UpdateServerHandshake implements Handler
 
         if (buf.getInt() != Server.REVISION)
         {
+            outOfDate = true;
             return false;
         }
 
@@ -34,4 +43,13 @@ public final class UpdateServerHandshake implements Handler
         return ByteBuffer.allocate(1).put((byte) 0);
     }
 
+    /**
+     * @return  True if {@link #decode(ByteBuffer)} failed because the client is
+     *          for another revision, rather than because it hasn't sent enough yet.
+     */
+    public boolean isOutOfDate()
+    {
+        return outOfDate;
+    }
+
 }
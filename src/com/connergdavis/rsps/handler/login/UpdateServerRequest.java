@@ -3,6 +3,7 @@ package com.connergdavis.rsps.handler.login;
 import com.connergdavis.rsps.Server;
 import com.connergdavis.rsps.handler.Handler;
 import com.connergdavis.rsps.handler.InvalidStreamException;
+import com.connergdavis.rsps.update.CacheRevision;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -34,33 +35,43 @@ public final class UpdateServerRequest implements Handler
         }
 
         this.cacheId = buf.get() & 0xFF;
-        this.fileId = buf.getShort();
+        this.fileId = buf.getShort() & 0xFFFF;
         return true;
     }
 
     @Override
     public ByteBuffer respond()
     {
-        try
+        // Answer entirely from one revision, even if the cache is swapped meanwhile.
+        CacheRevision revision = Server.getRevision();
+        ByteBuffer out;
+        if (cacheId == 255 && fileId == 255)
         {
-            if (cacheId == 255 && fileId == 255)
+            out = revision.getTables().getChecksumTable(priority == 1);
+        }
+        else if (cacheId == 255)
+        {
+            out = revision.getTables().getReferenceTable(fileId, priority == 1);
+        }
+        else
+        {
+            try
             {
-                ByteBuffer out;
-                ByteBuffer uKeys = Server.getCache().createChecksumTable().encode();
-                out = ByteBuffer.allocate(uKeys.limit() + 8);
-                out.put((byte) 0xFF).putShort((short) 0xFF).put((byte) 0).putInt(uKeys.limit()).put(uKeys);
-                return out;
+                out = revision.getArchives().get(cacheId, fileId, priority == 1);
             }
-            else
+            catch (IOException e)
             {
+                // Most likely the client asked for a file that doesn't exist.
                 return null;
             }
         }
-        catch (IOException e)
+
+        // These are shared, so skip straight to the end for Peer to flip.
+        if (out != null)
         {
-            e.printStackTrace();
-            return null;
+            out.position(out.limit());
         }
+        return out;
     }
 
 }
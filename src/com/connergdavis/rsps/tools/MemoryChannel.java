@@ -0,0 +1,297 @@
+package com.connergdavis.rsps.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A blocking socket channel with nobody on the other end, just a script
+ * of what each read returns.  Every chunk we're fed is handed out by
+ * exactly one read (or more if the reader's buffer is smaller), so how a
+ * stream gets split up is decided by us rather than by TCP.
+ *
+ * Everything written to it is kept so it can be checked afterwards.  It
+ * can't be registered with a selector, so it only suits code that reads
+ * on a thread of its own, like a {@link com.connergdavis.rsps.Peer}.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class MemoryChannel extends SocketChannel
+{
+
+    /**
+     * Queued after the last chunk to make reads return -1, and on close to
+     * wake up a read that's still waiting.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<>();
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final Socket socket = new Socket();
+    private ByteBuffer chunk;
+    /**
+     * Set while a read is waiting with every chunk we were given used up,
+     * which means whatever the reader made of them has been handled.
+     */
+    private volatile boolean starved;
+
+    MemoryChannel()
+    {
+        super(SelectorProvider.provider());
+    }
+
+    /**
+     * Have the next read return these bytes.
+     */
+    void feed(byte[] data, int offset, int length)
+    {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        chunks.add(ByteBuffer.wrap(copy));
+    }
+
+    /**
+     * Hang up once every chunk fed so far has been read.
+     */
+    void finish()
+    {
+        chunks.add(END);
+    }
+
+    /**
+     * Wait until the reader has used up every chunk and come back for more.
+     *
+     * @return  False if it didn't, or closed the channel instead.
+     */
+    boolean awaitStarved(long millis) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (!(starved && chunks.isEmpty()))
+        {
+            if (!isOpen() || System.nanoTime() - deadline > 0)
+            {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * @return  False if the channel still wasn't closed when we gave up waiting.
+     */
+    boolean awaitClosed(long millis) throws InterruptedException
+    {
+        return closed.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return  How many bytes have been written to us so far.
+     */
+    int getWrittenCount()
+    {
+        synchronized (written)
+        {
+            return written.size();
+        }
+    }
+
+    byte[] getWritten()
+    {
+        synchronized (written)
+        {
+            return written.toByteArray();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (!isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+
+        if (chunk == null || (chunk != END && !chunk.hasRemaining()))
+        {
+            starved = chunks.isEmpty();
+            try
+            {
+                chunk = chunks.take();
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+            finally
+            {
+                starved = false;
+            }
+        }
+
+        if (chunk == END)
+        {
+            if (!isOpen())
+            {
+                throw new AsynchronousCloseException();
+            }
+            return -1;
+        }
+
+        int count = Math.min(dst.remaining(), chunk.remaining());
+        ByteBuffer part = chunk.duplicate();
+        part.limit(part.position() + count);
+        dst.put(part);
+        chunk.position(chunk.position() + count);
+        return count;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        for (int i = offset; i < offset + length; i++)
+        {
+            if (dsts[i].hasRemaining())
+            {
+                return read(dsts[i]);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (!isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+
+        int count = src.remaining();
+        byte[] bytes = new byte[count];
+        src.get(bytes);
+        synchronized (written)
+        {
+            written.write(bytes, 0, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        long count = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            count += write(srcs[i]);
+        }
+        return count;
+    }
+
+    @Override
+    protected void implCloseSelectableChannel()
+    {
+        chunks.add(END);
+        closed.countDown();
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block)
+    {
+        // Reads always block, nothing to change.
+    }
+
+    @Override
+    public Socket socket()
+    {
+        return socket;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local)
+    {
+        return this;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value)
+    {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name)
+    {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions()
+    {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public SocketChannel shutdownInput()
+    {
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput()
+    {
+        return this;
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return isOpen();
+    }
+
+    @Override
+    public boolean isConnectionPending()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote)
+    {
+        return true;
+    }
+
+    @Override
+    public boolean finishConnect()
+    {
+        return true;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress()
+    {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress()
+    {
+        return null;
+    }
+
+}
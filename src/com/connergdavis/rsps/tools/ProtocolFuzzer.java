@@ -0,0 +1,684 @@
+package com.connergdavis.rsps.tools;
+
+import com.connergdavis.rsps.IsaacCipher;
+import com.connergdavis.rsps.NameCodec;
+import com.connergdavis.rsps.PlayerStore;
+import com.connergdavis.rsps.Server;
+import com.connergdavis.rsps.World;
+import com.connergdavis.rsps.handler.game.GamePacket;
+import com.connergdavis.rsps.update.CacheRevision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feeds real protocol streams to a server running in this process and checks
+ * what comes back, to catch framing mistakes in the read path before players do.
+ *
+ * <ul>
+ *     <li>Login streams (14 then 16) go through a {@link com.connergdavis.rsps.Peer}
+ *     over a {@link MemoryChannel}, split at every byte, all in one read and one byte
+ *     per read.  The peer must answer the request and end up with a player slot.</li>
+ *     <li>In-game packets the client sends while idle, with their IDs encrypted
+ *     as the client does, split the same ways after a login.  Every one of them must
+ *     reach the world's game thread, and no peer may hang up.</li>
+ *     <li>The same login streams with a few random bytes changed and split up at random,
+ *     from a fixed seed so any failure can be reproduced.  Whatever the peer makes of
+ *     them, it must hang up cleanly once the stream ends and never throw past its thread.</li>
+ *     <li>Update server streams (a handshake then several requests) are split at every
+ *     byte over loopback, on the game port (which hands the client over) and on the
+ *     update port.  The update server needs a real socket for its selector, so TCP
+ *     could still merge the two halves, but with Nagle off and a pause between them
+ *     it practically never does.</li>
+ * </ul>
+ *
+ * Finally it measures how many packets per second the peer read path and the update
+ * server decode and answer.  Every argument is passed on to {@link Server#main(String[])},
+ * so at least the cache has to be given, e.g. <code>--cache.path=...</code>.  The RSA key
+ * and ports are chosen by us, and dropped players aren't parked so we can check that
+ * every peer gives its slot back.  Exits with 1 if anything failed.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class ProtocolFuzzer
+{
+
+    /**
+     * Seed for everything random, so two runs send exactly the same streams.
+     */
+    private static final long SEED = 562;
+    private static final int MUTATIONS = 2000;
+    /**
+     * How many packets {@link #createGameStream(IsaacCipher)} makes.
+     */
+    private static final int GAME_PACKETS = 6;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    private static final long USERNAME = NameCodec.encode("fuzzer");
+    private static final byte[] PASSWORD = "hunter2".getBytes();
+    /**
+     * How many packets each throughput run sends.
+     */
+    private static final int THROUGHPUT_PACKETS = 500000;
+
+    private static final PrintStream report = System.out;
+    private static final PrintStream errors = System.err;
+    private static final AtomicInteger uncaught = new AtomicInteger();
+    private static int failures;
+
+    public static void main(String[] args) throws Exception
+    {
+        // Seeded too, so even the length of the RSA block is the same every run.
+        SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        keyRandom.setSeed(SEED);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024, keyRandom);
+        KeyPair key = generator.generateKeyPair();
+        RSAPublicKey publicKey = (RSAPublicKey) key.getPublic();
+
+        int port = getFreePort();
+        int updatePort = getFreePort();
+        List<String> serverArgs = new ArrayList<>(Arrays.asList(args));
+        Collections.addAll(serverArgs, "--rsa.key=",
+            "--rsa.modulus=" + publicKey.getModulus(),
+            "--rsa.exponent=" + ((RSAPrivateKey) key.getPrivate()).getPrivateExponent(),
+            "--mode=game", "--worlds=1:" + port, "--update.port=" + updatePort,
+            "--update.rate.global=0", "--update.rate.background=0", "--update.rate.peer=0",
+            "--resume.grace=0");
+
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+        {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e)
+            {
+                uncaught.incrementAndGet();
+                report.printf("Uncaught on [%s]: %s\n", thread.getName(), e);
+            }
+        });
+
+        Server.main(serverArgs.toArray(new String[serverArgs.size()]));
+        World world = Server.getWorlds().get(0);
+        Random random = new Random(SEED);
+
+        // The server is chatty about every login and bad stream, which we cause thousands of.
+        quiet(true);
+        try
+        {
+            byte[] login = createLoginStream(publicKey, random);
+            fuzzLoginSplits(world, login);
+            fuzzGameSplits(world, publicKey, random);
+            fuzzLoginMutations(world, login, random);
+
+            byte[][] update = createUpdateStream();
+            fuzzUpdateSplits("game port", port, update[0], update[1]);
+            fuzzUpdateSplits("update port", updatePort, update[0], update[1]);
+
+            measurePeerThroughput(world);
+            measureUpdateThroughput(updatePort);
+        }
+        finally
+        {
+            quiet(false);
+        }
+
+        failures += uncaught.get();
+        report.println(failures == 0 ? "All protocol checks passed." : failures + " protocol checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Every way of splitting a valid login into two reads, plus all in one read
+     * and one byte per read.
+     */
+    private static void fuzzLoginSplits(World world, byte[] login) throws InterruptedException
+    {
+        int before = failures;
+        List<int[]> splits = new ArrayList<>();
+        splits.add(new int[] { login.length });
+        splits.add(bytewise(login.length));
+        for (int split = 1; split < login.length; split++)
+        {
+            splits.add(new int[] { split, login.length - split });
+        }
+
+        for (int[] chunks : splits)
+        {
+            MemoryChannel channel = new MemoryChannel();
+            if (!accept(world, channel))
+            {
+                continue;
+            }
+            feed(channel, login, chunks);
+
+            String problem = null;
+            if (!channel.awaitStarved(TIMEOUT))
+            {
+                problem = "peer hung up or stalled";
+            }
+            else if (channel.getWrittenCount() != 9 || channel.getWritten()[0] != 0)
+            {
+                problem = "expected a 9 byte login response, got " + channel.getWrittenCount() + " bytes";
+            }
+            else if (findSlot(world.getPlayers()) == -1)
+            {
+                problem = "no player slot allocated";
+            }
+
+            channel.finish();
+            boolean released = awaitRelease(world, channel);
+            if (problem == null && !released)
+            {
+                problem = "peer didn't clean up after hanging up";
+            }
+            if (problem != null)
+            {
+                fail("Login split " + Arrays.toString(chunks) + ": " + problem);
+            }
+        }
+        report.printf("Login streams split %d ways: %d failed.\n", splits.size(), failures - before);
+    }
+
+    /**
+     * Every way of splitting a few in-game packets into two reads, plus all in one
+     * read and one byte per read, each after a login of its own.  All the peers are
+     * running at once so the game thread handles their packets in the same tick or two.
+     */
+    private static void fuzzGameSplits(World world, RSAPublicKey key, Random random) throws InterruptedException
+    {
+        int before = failures;
+        long clientKey = random.nextLong();
+        long serverKey = random.nextLong();
+        byte[] login = createLoginStream(key, clientKey, serverKey);
+        int[] seeds = { (int) (clientKey >> 32), (int) clientKey, (int) (serverKey >> 32), (int) serverKey };
+        byte[] game = createGameStream(new IsaacCipher(seeds));
+
+        List<int[]> splits = new ArrayList<>();
+        splits.add(new int[] { game.length });
+        splits.add(bytewise(game.length));
+        for (int split = 1; split < game.length; split++)
+        {
+            splits.add(new int[] { split, game.length - split });
+        }
+
+        long handled = world.getPacketsHandled();
+        List<MemoryChannel> channels = new ArrayList<>();
+        for (int[] chunks : splits)
+        {
+            MemoryChannel channel = new MemoryChannel();
+            if (!accept(world, channel))
+            {
+                continue;
+            }
+            channel.feed(login, 0, login.length);
+            feed(channel, game, chunks);
+            channels.add(channel);
+        }
+
+        for (int i = 0; i < channels.size(); i++)
+        {
+            if (!channels.get(i).awaitStarved(TIMEOUT))
+            {
+                fail("Game split " + Arrays.toString(splits.get(i)) + ": peer hung up or stalled");
+            }
+        }
+
+        // Every peer sent the same packets, so the game thread should handle all of them.
+        long expected = (long) channels.size() * GAME_PACKETS;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (world.getPacketsHandled() - handled < expected && System.nanoTime() - deadline < 0)
+        {
+            Thread.sleep(10);
+        }
+        if (world.getPacketsHandled() - handled != expected)
+        {
+            fail("Game splits: the game thread handled " + (world.getPacketsHandled() - handled) + " of "
+                + expected + " packets");
+        }
+
+        for (MemoryChannel channel : channels)
+        {
+            channel.finish();
+        }
+        for (MemoryChannel channel : channels)
+        {
+            if (!awaitRelease(world, channel))
+            {
+                fail("Game splits: a peer didn't clean up after hanging up");
+                break;
+            }
+        }
+        report.printf("Game streams split %d ways: %d failed.\n", splits.size(), failures - before);
+    }
+
+    /**
+     * Valid logins with a few bytes changed, read in random pieces.
+     */
+    private static void fuzzLoginMutations(World world, byte[] login, Random random) throws InterruptedException
+    {
+        int before = failures;
+        for (int i = 0; i < MUTATIONS; i++)
+        {
+            byte[] mutated = login.clone();
+            int changes = 1 + random.nextInt(4);
+            for (int j = 0; j < changes; j++)
+            {
+                mutated[random.nextInt(mutated.length)] = (byte) random.nextInt(256);
+            }
+
+            List<Integer> sizes = new ArrayList<>();
+            for (int left = mutated.length; left > 0; )
+            {
+                int size = Math.min(left, 1 + random.nextInt(64));
+                sizes.add(size);
+                left -= size;
+            }
+            int[] chunks = new int[sizes.size()];
+            for (int j = 0; j < chunks.length; j++)
+            {
+                chunks[j] = sizes.get(j);
+            }
+
+            MemoryChannel channel = new MemoryChannel();
+            if (!accept(world, channel))
+            {
+                continue;
+            }
+            feed(channel, mutated, chunks);
+            channel.finish();
+            if (!awaitRelease(world, channel))
+            {
+                fail("Mutation " + i + " (seed " + SEED + ") left the peer running or holding its slot");
+            }
+        }
+        report.printf("Mutated login streams: %d sent, %d failed.\n", MUTATIONS, failures - before);
+    }
+
+    /**
+     * Every way of splitting an update server handshake and its requests into two writes.
+     */
+    private static void fuzzUpdateSplits(String name, int port, byte[] stream, byte[] expected)
+        throws InterruptedException
+    {
+        int before = failures;
+        for (int split = 0; split < stream.length; split++)
+        {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+            {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) TIMEOUT);
+                OutputStream out = socket.getOutputStream();
+                if (split > 0)
+                {
+                    out.write(stream, 0, split);
+                    out.flush();
+                    Thread.sleep(2);
+                }
+                out.write(stream, split, stream.length - split);
+                out.flush();
+
+                byte[] received = new byte[expected.length];
+                new DataInputStream(socket.getInputStream()).readFully(received);
+                if (!Arrays.equals(received, expected))
+                {
+                    fail("Update split at " + split + " on the " + name + ": wrong responses");
+                }
+            }
+            catch (IOException e)
+            {
+                fail("Update split at " + split + " on the " + name + ": " + e);
+            }
+        }
+        report.printf("Update streams split %d ways on the %s: %d failed.\n", stream.length, name,
+            failures - before);
+    }
+
+    /**
+     * Login requests decoded and answered per second by one peer, fed many at once.
+     */
+    private static void measurePeerThroughput(World world) throws InterruptedException
+    {
+        // A peer that hasn't logged in yet answers as many login requests as we like.
+        byte[] requests = new byte[THROUGHPUT_PACKETS * 2];
+        for (int i = 0; i < requests.length; i += 2)
+        {
+            requests[i] = 14;
+            requests[i + 1] = (byte) (31 & USERNAME >> 16);
+        }
+
+        MemoryChannel channel = new MemoryChannel();
+        if (!accept(world, channel))
+        {
+            return;
+        }
+
+        long start = System.nanoTime();
+        for (int offset = 0; offset < requests.length; offset += 4096)
+        {
+            channel.feed(requests, offset, Math.min(4096, requests.length - offset));
+        }
+        if (!channel.awaitStarved(TIMEOUT * 10) || channel.getWrittenCount() != THROUGHPUT_PACKETS * 9)
+        {
+            fail("Peer throughput: not every login request was answered");
+        }
+        long nanos = System.nanoTime() - start;
+        channel.finish();
+        awaitRelease(world, channel);
+
+        report.printf("Peer read path: %,d packets/s.\n", THROUGHPUT_PACKETS * TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+
+    /**
+     * Requests for the checksum table answered per second by the update server.
+     */
+    private static void measureUpdateThroughput(int port) throws Exception
+    {
+        final int responseSize = Server.getRevision().getTables().getChecksumTable().remaining();
+        final byte[] requests = new byte[THROUGHPUT_PACKETS * 4];
+        for (int i = 0; i < requests.length; i += 4)
+        {
+            requests[i] = 1;
+            requests[i + 1] = (byte) 255;
+            requests[i + 2] = 0;
+            requests[i + 3] = (byte) 255;
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+        {
+            socket.setSoTimeout((int) TIMEOUT);
+            final OutputStream out = socket.getOutputStream();
+            out.write(createHandshake());
+
+            Thread writer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        out.write(requests);
+                    }
+                    catch (IOException e)
+                    {
+                        // Noticed by the reader coming up short.
+                    }
+                }
+            }, "fuzzer-writer");
+
+            long start = System.nanoTime();
+            writer.start();
+            long expected = 1 + (long) THROUGHPUT_PACKETS * responseSize;
+            byte[] buf = new byte[65536];
+            long received = 0;
+            int read;
+            while (received < expected && (read = socket.getInputStream().read(buf)) != -1)
+            {
+                received += read;
+            }
+            long nanos = System.nanoTime() - start;
+            writer.join();
+
+            if (received < expected)
+            {
+                fail("Update throughput: only " + received + " of " + expected + " bytes came back");
+                return;
+            }
+            report.printf("Update server: %,d requests/s.\n", THROUGHPUT_PACKETS * TimeUnit.SECONDS.toNanos(1) / nanos);
+        }
+        catch (IOException e)
+        {
+            fail("Update throughput: " + e);
+        }
+    }
+
+    /**
+     * A login request followed by a login, exactly as the 562 client sends them.
+     */
+    private static byte[] createLoginStream(RSAPublicKey key, Random random)
+    {
+        return createLoginStream(key, random.nextLong(), random.nextLong());
+    }
+
+    /**
+     * @param clientKey The client's half of the ISAAC seeds.
+     * @param serverKey The server's half, which a real client would have been given.
+     */
+    private static byte[] createLoginStream(RSAPublicKey key, long clientKey, long serverKey)
+    {
+        ByteBuffer secure = ByteBuffer.allocate(64);
+        secure.put((byte) 10).putLong(clientKey).putLong(serverKey).putLong(USERNAME);
+        secure.put(PASSWORD).put((byte) 0);
+        byte[] block = new BigInteger(Arrays.copyOf(secure.array(), secure.position()))
+            .modPow(key.getPublicExponent(), key.getModulus()).toByteArray();
+
+        ByteBuffer payload = ByteBuffer.allocate(512);
+        payload.putInt(Server.REVISION).put((byte) 0);
+        payload.put((byte) 1).putShort((short) 765).putShort((short) 503);
+        payload.put(new byte[24]);
+        payload.put("fuzzer".getBytes()).put((byte) 0);
+        payload.putInt(0).putInt(0).putShort((short) 0);
+        payload.put(new byte[29 * 4]);
+        payload.put((byte) block.length).put(block);
+        payload.flip();
+
+        ByteBuffer stream = ByteBuffer.allocate(5 + payload.remaining());
+        stream.put((byte) 14).put((byte) (31 & USERNAME >> 16));
+        stream.put((byte) 16).putShort((short) payload.remaining()).put(payload);
+        return stream.array();
+    }
+
+    /**
+     * The packets an idle client sends, {@link #GAME_PACKETS} of them, with their IDs
+     * encrypted as the client would.
+     *
+     * @param cipher    The client's outgoing cipher, fresh from its seeds.
+     */
+    private static byte[] createGameStream(IsaacCipher cipher)
+    {
+        ByteBuffer stream = ByteBuffer.allocate(64);
+        stream.put((byte) (GamePacket.PING + cipher.getNextKey()));
+        stream.put((byte) (GamePacket.FOCUS + cipher.getNextKey())).put((byte) 1);
+        stream.put((byte) (GamePacket.MOUSE_CLICK + cipher.getNextKey())).putShort((short) 40).putInt(0x01F401F4);
+        stream.put((byte) (GamePacket.MOUSE_MOVE + cipher.getNextKey())).put((byte) 5).put(new byte[5]);
+        stream.put((byte) (GamePacket.CAMERA + cipher.getNextKey())).putShort((short) 1024).putShort((short) 128);
+        stream.put((byte) (GamePacket.PING + cipher.getNextKey()));
+        return Arrays.copyOf(stream.array(), stream.position());
+    }
+
+    /**
+     * An update server handshake followed by urgent requests for the checksum
+     * table, every reference table and an archive, and then a background
+     * request for the same archive.  Asked for last so it's always answered last.
+     *
+     * @return  The stream and the exact responses it should get.
+     */
+    private static byte[][] createUpdateStream() throws IOException
+    {
+        CacheRevision revision = Server.getRevision();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        stream.write(createHandshake());
+        expected.write(0);
+
+        request(stream, expected, 1, 255, 255, revision.getTables().getChecksumTable());
+        for (int index = 0; index < 255; index++)
+        {
+            ByteBuffer table = revision.getTables().getReferenceTable(index);
+            if (table != null)
+            {
+                request(stream, expected, 1, 255, index, table);
+            }
+        }
+        for (int index : Server.getConfig().getWarmupIndices())
+        {
+            ByteBuffer archive = revision.getArchives().get(index, 0, true);
+            if (archive != null)
+            {
+                request(stream, expected, 1, index, 0, archive);
+                request(stream, expected, 0, index, 0, revision.getArchives().get(index, 0, false));
+                break;
+            }
+        }
+        return new byte[][] { stream.toByteArray(), expected.toByteArray() };
+    }
+
+    private static void request(ByteArrayOutputStream stream, ByteArrayOutputStream expected, int opcode,
+                                int index, int file, ByteBuffer response)
+    {
+        stream.write(opcode);
+        stream.write(index);
+        stream.write(file >> 8);
+        stream.write(file);
+        while (response.hasRemaining())
+        {
+            expected.write(response.get());
+        }
+    }
+
+    private static byte[] createHandshake()
+    {
+        return ByteBuffer.allocate(5).put((byte) 15).putInt(Server.REVISION).array();
+    }
+
+    private static boolean accept(World world, MemoryChannel channel)
+    {
+        try
+        {
+            if (world.accept(channel))
+            {
+                return true;
+            }
+            fail("World refused a peer, is peer.max too low?");
+        }
+        catch (IOException e)
+        {
+            fail("World refused a peer: " + e);
+        }
+        return false;
+    }
+
+    private static void feed(MemoryChannel channel, byte[] stream, int[] chunks)
+    {
+        int offset = 0;
+        for (int chunk : chunks)
+        {
+            channel.feed(stream, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    /**
+     * Wait for a peer whose stream has ended to hang up and give back its player
+     * slot.  We only ever have one peer at a time, so every slot should be free.
+     */
+    private static boolean awaitRelease(World world, MemoryChannel channel) throws InterruptedException
+    {
+        if (!channel.awaitClosed(TIMEOUT))
+        {
+            return false;
+        }
+
+        // The slot is released just after the channel is closed.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (countPlayers(world.getPlayers()) > 0)
+        {
+            if (System.nanoTime() - deadline > 0)
+            {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static int findSlot(PlayerStore players)
+    {
+        for (int slot = 1; slot <= players.getCapacity(); slot++)
+        {
+            if (players.getUsername(slot) == USERNAME)
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static int countPlayers(PlayerStore players)
+    {
+        int count = 0;
+        for (int slot = 1; slot <= players.getCapacity(); slot++)
+        {
+            if (players.getUsername(slot) != 0L)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int[] bytewise(int length)
+    {
+        int[] chunks = new int[length];
+        Arrays.fill(chunks, 1);
+        return chunks;
+    }
+
+    private static void fail(String message)
+    {
+        failures++;
+        report.println(message);
+    }
+
+    private static int getFreePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void quiet(boolean quiet)
+    {
+        if (quiet)
+        {
+            PrintStream discard = new PrintStream(new OutputStream()
+            {
+                @Override
+                public void write(int b)
+                {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                {
+                }
+            });
+            System.setOut(discard);
+            System.setErr(discard);
+        }
+        else
+        {
+            System.setOut(report);
+            System.setErr(errors);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.connergdavis.rsps.tools;
+
+import com.connergdavis.rsps.RsaKey;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many login RSA blocks a single core can decrypt per second,
+ * both the slow way and with the CRT components, since that's what limits
+ * how fast players can log back in after a restart.
+ *
+ * Run with the path of a key file to benchmark our own key, or with a key
+ * size in bits to benchmark a freshly generated one (1024 by default).
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class RsaBenchmark
+{
+
+    /**
+     * How long each variant is run for, after warming up for the same amount of time.
+     */
+    private static final long DURATION = TimeUnit.SECONDS.toNanos(5);
+
+    public static void main(String[] args) throws Exception
+    {
+        RsaKey key;
+        if (args.length > 0 && new File(args[0]).isFile())
+        {
+            key = RsaKey.load(new File(args[0]));
+        }
+        else
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(args.length > 0 ? Integer.parseInt(args[0]) : 1024);
+            RSAPrivateCrtKey generated = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+            key = new RsaKey(generated.getModulus(), generated.getPrivateExponent(), generated.getPrimeP(),
+                generated.getPrimeQ(), generated.getPrimeExponentP(), generated.getPrimeExponentQ(),
+                generated.getCrtCoefficient());
+        }
+
+        if (!key.hasCrt())
+        {
+            System.out.println("Key has no CRT components, nothing to compare against.");
+            return;
+        }
+
+        // Random blocks smaller than the modulus, standing in for encrypted logins.
+        Random random = new Random(562);
+        BigInteger[] blocks = new BigInteger[64];
+        for (int i = 0; i < blocks.length; i++)
+        {
+            blocks[i] = new BigInteger(key.getModulus().bitLength() - 1, random);
+        }
+
+        RsaKey plain = key.withoutCrt();
+        for (BigInteger block : blocks)
+        {
+            if (!plain.decrypt(block).equals(key.decrypt(block)))
+            {
+                throw new IllegalStateException("CRT decryption disagrees with plain decryption");
+            }
+        }
+
+        System.out.printf("%d bit key, single thread:\n", key.getModulus().bitLength());
+        double before = run(plain, blocks);
+        double after = run(key, blocks);
+        System.out.printf("  modPow: %,.0f logins/s\n", before);
+        System.out.printf("  CRT:    %,.0f logins/s (%.1fx)\n", after, after / before);
+    }
+
+    /**
+     * @return  Decryptions per second.
+     */
+    private static double run(RsaKey key, BigInteger[] blocks)
+    {
+        measure(key, blocks);
+        return measure(key, blocks);
+    }
+
+    private static double measure(RsaKey key, BigInteger[] blocks)
+    {
+        long count = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        int sink = 0;
+        while ((elapsed = System.nanoTime() - start) < DURATION)
+        {
+            sink += key.decrypt(blocks[(int) (count++ % blocks.length)]).bitLength();
+        }
+
+        if (sink == 42)
+        {
+            // Just so the decryptions can't be optimized away.
+            System.out.print("");
+        }
+        return count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.connergdavis.rsps.update;
+
+import net.openrs.cache.FileStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps archives in the exact form they are written to peers in, so
+ * that a file only has to be read from the cache and framed once no
+ * matter how many clients download it.
+ *
+ * Memory use is capped by a byte budget, and whatever was used least
+ * recently is thrown out first once we go over it.  Responses are shared
+ * between peers, so only read-only views of them are ever handed out.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class ArchiveCache
+{
+
+    private final FileStore store;
+    private final long budget;
+    /**
+     * Kept in access order, so the eldest entry is always the least
+     * recently used one.
+     */
+    private final LinkedHashMap<Integer, ByteBuffer> responses = new LinkedHashMap<>(1024, 0.75F, true);
+    private long size;
+
+    /**
+     * @param store     Where to read archives from when they aren't cached yet.
+     * @param budget    The most bytes of responses we're allowed to hold.
+     */
+    public ArchiveCache(FileStore store, long budget)
+    {
+        this.store = store;
+        this.budget = budget;
+    }
+
+    /**
+     * Find the response for an archive, reading and framing it first if needed.
+     *
+     * @param index     The index the archive belongs to.
+     * @param file      The archive's ID within that index.
+     * @param urgent    Whether the peer asked for it urgently.
+     * @return          The response positioned at its start, or null if the
+     *                  archive doesn't exist.
+     * @throws IOException  If the archive couldn't be read from the cache.
+     */
+    public ByteBuffer get(int index, int file, boolean urgent) throws IOException
+    {
+        // Urgent and background responses differ by a flag, so they're kept separately.
+        int key = index << 17 | file << 1 | (urgent ? 0 : 1);
+
+        synchronized (this)
+        {
+            ByteBuffer response = responses.get(key);
+            if (response != null)
+            {
+                return response.duplicate();
+            }
+        }
+
+        ByteBuffer container = store.read(index, file);
+        if (container == null || container.remaining() < 5)
+        {
+            return null;
+        }
+
+        ByteBuffer response = UpdateResponses.encode(index, file, container, urgent);
+        put(key, response);
+        return response.duplicate();
+    }
+
+    /**
+     * Start an archive cache for an updated revision of the cache, keeping every
+     * response of ours whose archive is the same in both revisions (in the same
+     * least recently used order) so that only what changed is read again.
+     *
+     * @param store     Where the new revision's archives are read from.
+     * @param before    The tables of the revision we've been serving.
+     * @param after     The tables of the new revision.
+     * @return          The new archive cache, with the same budget as ours.
+     */
+    public ArchiveCache update(FileStore store, UpdateTables before, UpdateTables after)
+    {
+        ArchiveCache updated = new ArchiveCache(store, budget);
+        synchronized (this)
+        {
+            for (Map.Entry<Integer, ByteBuffer> entry : responses.entrySet())
+            {
+                int key = entry.getKey();
+                if (after.isUnchanged(before, key >>> 17, key >>> 1 & 0xFFFF))
+                {
+                    updated.responses.put(key, entry.getValue());
+                    updated.size += entry.getValue().capacity();
+                }
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Load every archive in each of the given indices, in order, until we
+     * either run out of archives or fill the budget.  Meant to be called at
+     * startup with whatever every new client downloads first.
+     *
+     * @param indices   The indices to preload.
+     * @return          How many archives were loaded.
+     * @throws IOException  If the cache couldn't be read.
+     */
+    public int warm(int[] indices) throws IOException
+    {
+        int loaded = 0;
+        for (int index : indices)
+        {
+            int count = store.getFileCount(index);
+            for (int file = 0; file < count; file++)
+            {
+                if (isFull())
+                {
+                    return loaded;
+                }
+
+                if (get(index, file, true) != null)
+                {
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    public synchronized int getCount()
+    {
+        return responses.size();
+    }
+
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    private synchronized boolean isFull()
+    {
+        return size >= budget;
+    }
+
+    private synchronized void put(int key, ByteBuffer response)
+    {
+        if (response.capacity() > budget)
+        {
+            return;
+        }
+
+        ByteBuffer previous = responses.put(key, response);
+        if (previous != null)
+        {
+            size -= previous.capacity();
+        }
+        size += response.capacity();
+
+        Iterator<Map.Entry<Integer, ByteBuffer>> eldest = responses.entrySet().iterator();
+        while (size > budget && eldest.hasNext())
+        {
+            size -= eldest.next().getValue().capacity();
+            eldest.remove();
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.connergdavis.rsps.update;
+
+/**
+ * Decides how many bytes each update server client may be sent right
+ * now, so that a single fast client (or a storm of them) can't take
+ * the whole uplink away from players who are in game.
+ *
+ * There are three limits: one for everything the update server sends,
+ * a smaller one for answers to background requests (so files a client
+ * needs right now aren't stuck behind ones it's just prefetching), and
+ * one for each client on its own.  Any of them can be 0 to turn it off.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class BandwidthShaper
+{
+
+    /**
+     * Smallest burst a bucket allows, which is a handful of the
+     * 512 byte blocks responses are read in.
+     */
+    private static final long MIN_BURST = 8 * 1024;
+
+    private final TokenBucket global;
+    private final TokenBucket background;
+    private final long peerRate;
+
+    /**
+     * @param globalRate        Bytes per second for everything we send.
+     * @param backgroundRate    Bytes per second for answers to background requests.
+     * @param peerRate          Bytes per second for each client.
+     */
+    public BandwidthShaper(long globalRate, long backgroundRate, long peerRate)
+    {
+        this.global = bucket(globalRate);
+        this.background = bucket(backgroundRate);
+        this.peerRate = peerRate;
+    }
+
+    /**
+     * @return  A shaper that never holds anything back.
+     */
+    public static BandwidthShaper unlimited()
+    {
+        return new BandwidthShaper(0, 0, 0);
+    }
+
+    /**
+     * @return  A new bucket for limiting a single client.
+     */
+    TokenBucket createPeerBucket()
+    {
+        return bucket(peerRate);
+    }
+
+    /**
+     * @param peer      The client's own bucket.
+     * @param urgent    Whether we're answering an urgent request.
+     * @return          How many bytes we may send the client right now.
+     */
+    long allowance(TokenBucket peer, boolean urgent)
+    {
+        long allowance = Math.min(global.available(), peer.available());
+        if (!urgent)
+        {
+            allowance = Math.min(allowance, background.available());
+        }
+        return allowance;
+    }
+
+    /**
+     * Account for bytes that were just sent to a client.
+     */
+    void spend(TokenBucket peer, boolean urgent, long amount)
+    {
+        global.spend(amount);
+        peer.spend(amount);
+        if (!urgent)
+        {
+            background.spend(amount);
+        }
+    }
+
+    /**
+     * @param amount    How many bytes we're waiting to be allowed to send.
+     * @return          Nanoseconds until a client that's been held back may be sent that much.
+     */
+    long nanosUntilAllowed(TokenBucket peer, boolean urgent, long amount)
+    {
+        long wait = Math.max(global.nanosUntilAvailable(amount), peer.nanosUntilAvailable(amount));
+        if (!urgent)
+        {
+            wait = Math.max(wait, background.nanosUntilAvailable(amount));
+        }
+        return wait;
+    }
+
+    /**
+     * Buckets hold up to a quarter second's worth of bytes, which smooths out
+     * bursts without letting an idle client save up a big head start.
+     */
+    private static TokenBucket bucket(long rate)
+    {
+        return new TokenBucket(rate, Math.max(MIN_BURST, rate / 4));
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.connergdavis.rsps.update;
+
+import net.openrs.cache.Cache;
+
+/**
+ * One revision of the cache together with everything we precomputed from
+ * it.  They're kept together so that swapping in an updated cache is a
+ * single write: a request that picked up a revision is answered entirely
+ * from it, and never gets the checksum table of one revision and the
+ * archives of another.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class CacheRevision
+{
+
+    private final Cache cache;
+    private final UpdateTables tables;
+    private final ArchiveCache archives;
+
+    public CacheRevision(Cache cache, UpdateTables tables, ArchiveCache archives)
+    {
+        this.cache = cache;
+        this.tables = tables;
+        this.archives = archives;
+    }
+
+    public Cache getCache()
+    {
+        return cache;
+    }
+
+    public UpdateTables getTables()
+    {
+        return tables;
+    }
+
+    public ArchiveCache getArchives()
+    {
+        return archives;
+    }
+
+}
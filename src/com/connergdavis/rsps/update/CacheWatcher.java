@@ -0,0 +1,156 @@
+package com.connergdavis.rsps.update;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an eye on the cache directory and lets us know when its
+ * files have been changed, so that anything built from the cache
+ * (like {@link UpdateTables}) can be rebuilt without a restart.
+ *
+ * Replacing a cache touches many files one after another, so we wait
+ * until things have been quiet for a little while before reporting
+ * the change.  That way we only rebuild once per update.  Whoever loads
+ * the changed cache can also check with {@link #awaitSettled(Path)} that
+ * nothing is still writing to it, and compare it again afterwards.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class CacheWatcher implements Runnable
+{
+
+    /**
+     * How long the directory must go without changes before we
+     * consider the update finished.
+     */
+    private static final long QUIET_PERIOD = TimeUnit.SECONDS.toMillis(5);
+    /**
+     * How often {@link #awaitSettled(Path)} looks at the cache's files, and
+     * how long it waits for them to stop changing before giving up.
+     */
+    private static final long SETTLE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    private static final long SETTLE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    private static final String CACHE_FILE_PREFIX = "main_file_cache";
+
+    private final Path directory;
+    private final Runnable onChange;
+
+    /**
+     * @param directory The cache directory to watch.
+     * @param onChange  Run on this watcher's thread whenever the cache has changed.
+     */
+    public CacheWatcher(Path directory, Runnable onChange)
+    {
+        this.directory = directory;
+        this.onChange = onChange;
+    }
+
+    @Override
+    public void run()
+    {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService())
+        {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+            boolean changed = false;
+            while (!Thread.currentThread().isInterrupted())
+            {
+                WatchKey key = changed
+                    ? watcher.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)
+                    : watcher.take();
+
+                if (key == null)
+                {
+                    // Nothing else happened during the quiet period, so the update is done.
+                    changed = false;
+                    try
+                    {
+                        onChange.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // Don't stop watching because one reload went wrong, the next one may not.
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
+
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    if (event.context() instanceof Path
+                        && ((Path) event.context()).getFileName().toString().startsWith(CACHE_FILE_PREFIX))
+                    {
+                        changed = true;
+                    }
+                }
+                key.reset();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Asked to stop watching.
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Wait until the cache's files have stopped changing, so we don't load
+     * one that's still being written.
+     *
+     * @param directory             The cache directory.
+     * @return                      What the files look like now, see {@link #fingerprint(Path)}.
+     * @throws IOException          If they can't be read, or are still changing after a minute.
+     * @throws InterruptedException If we're asked to stop waiting.
+     */
+    public static String awaitSettled(Path directory) throws IOException, InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+        String previous = fingerprint(directory);
+        while (System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(SETTLE_INTERVAL);
+            String current = fingerprint(directory);
+            if (current.equals(previous))
+            {
+                return current;
+            }
+            previous = current;
+        }
+        throw new IOException("Cache in [" + directory + "] is still being written to");
+    }
+
+    /**
+     * @param directory     The cache directory.
+     * @return              The name, size and modification time of each of the
+     *                      cache's files, which changes whenever any of them is written to.
+     * @throws IOException  If they can't be read.
+     */
+    public static String fingerprint(Path directory) throws IOException
+    {
+        Map<String, String> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, CACHE_FILE_PREFIX + "*"))
+        {
+            for (Path file : stream)
+            {
+                files.put(file.getFileName().toString(), Files.size(file) + "@"
+                    + Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS));
+            }
+        }
+        return files.toString();
+    }
+
+}
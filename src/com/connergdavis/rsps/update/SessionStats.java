@@ -0,0 +1,66 @@
+package com.connergdavis.rsps.update;
+
+import java.net.InetAddress;
+
+/**
+ * What a single {@link UpdateSession} has cost us: bytes in each direction
+ * and how many requests it made.  Sessions share the update server's threads,
+ * so unlike a game peer there's no CPU time or memory to pin on any one of them.
+ *
+ * Counters are only ever updated by the session's loop and may be read from
+ * any other thread, so a reading can be a request behind but is never torn.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class SessionStats
+{
+
+    private final InetAddress address;
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile long requests;
+
+    SessionStats(InetAddress address)
+    {
+        this.address = address;
+    }
+
+    void received(int bytes)
+    {
+        bytesIn += bytes;
+    }
+
+    void sent(long bytes)
+    {
+        bytesOut += bytes;
+    }
+
+    void requested()
+    {
+        requests++;
+    }
+
+    /**
+     * @return  Where the client is connecting from, if we know.
+     */
+    public InetAddress getAddress()
+    {
+        return address;
+    }
+
+    public long getBytesIn()
+    {
+        return bytesIn;
+    }
+
+    public long getBytesOut()
+    {
+        return bytesOut;
+    }
+
+    public long getRequests()
+    {
+        return requests;
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.connergdavis.rsps.update;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classic token bucket: tokens (bytes, for us) trickle in at a fixed
+ * rate up to some maximum, and spending them is how we limit how fast
+ * something is allowed to go.
+ *
+ * Spending more than is available is allowed and just puts the bucket
+ * in debt, which keeps callers on different threads from having to agree
+ * on who gets the last few tokens.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class TokenBucket
+{
+
+    /**
+     * Tokens added per second, or 0 if this bucket never runs out.
+     */
+    private final long rate;
+    private final long capacity;
+    private long tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param rate      Tokens added per second, or 0 for no limit at all.
+     * @param capacity  The most tokens that can build up while unused.
+     */
+    TokenBucket(long rate, long capacity)
+    {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+    }
+
+    /**
+     * @return  How many tokens can be spent right now.
+     */
+    synchronized long available()
+    {
+        return available(System.nanoTime());
+    }
+
+    /**
+     * @param now   The current {@link System#nanoTime()}.
+     * @return      How many tokens can be spent at that time.
+     */
+    synchronized long available(long now)
+    {
+        if (rate == 0)
+        {
+            return Long.MAX_VALUE;
+        }
+        refill(now);
+        return tokens;
+    }
+
+    synchronized void spend(long amount)
+    {
+        if (rate != 0)
+        {
+            refill(System.nanoTime());
+            tokens -= amount;
+        }
+    }
+
+    /**
+     * @param amount    How many tokens we're waiting for, at most the bucket's capacity.
+     * @return          Nanoseconds until that many tokens will be available.
+     */
+    synchronized long nanosUntilAvailable(long amount)
+    {
+        if (rate == 0)
+        {
+            return 0;
+        }
+
+        refill(System.nanoTime());
+        long missing = Math.min(amount, capacity) - tokens;
+        return missing <= 0 ? 0 : missing * TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+    private void refill(long now)
+    {
+        long elapsed = now - lastRefill;
+        if (elapsed >= (capacity - tokens) * TimeUnit.SECONDS.toNanos(1) / rate)
+        {
+            // Full again, however long it's been.  Working out how many tokens a long
+            // idle period is worth would overflow, which would leave us in debt for good.
+            tokens = capacity;
+            lastRefill = now;
+            return;
+        }
+
+        // Less than it takes to fill up, so this can't overflow.
+        long added = elapsed * rate / TimeUnit.SECONDS.toNanos(1);
+        if (added > 0)
+        {
+            tokens = Math.min(capacity, tokens + added);
+            // Only move forward by the time the added tokens account for, so nothing is lost to rounding.
+            lastRefill += added * TimeUnit.SECONDS.toNanos(1) / rate;
+        }
+    }
+
+}
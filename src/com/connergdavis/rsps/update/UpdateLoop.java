@@ -0,0 +1,285 @@
+package com.connergdavis.rsps.update;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One of the update server's threads.  It services any number of
+ * {@link UpdateSession}s with a single selector, so file downloads never
+ * need (or compete for) the threads that game peers run on.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class UpdateLoop implements Runnable
+{
+
+    /**
+     * Shortest we'll wait before retrying a throttled session, so that a
+     * nearly empty bucket doesn't have us spinning for single bytes.
+     */
+    private static final long MIN_THROTTLE = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Selector selector;
+    /**
+     * Sessions handed to us by other threads, waiting to be registered
+     * with the selector on our own thread.
+     */
+    private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * Sessions that ran out of bandwidth allowance, soonest to be allowed
+     * again first.  Only ever touched on our own thread.
+     */
+    private final PriorityQueue<Wakeup> throttled = new PriorityQueue<>();
+    /**
+     * Every session we're serving, so other threads can count and inspect them.
+     */
+    private final Set<UpdateSession> sessions =
+        Collections.newSetFromMap(new ConcurrentHashMap<UpdateSession, Boolean>());
+    private final BandwidthShaper shaper;
+    private volatile boolean running = true;
+
+    UpdateLoop(BandwidthShaper shaper) throws IOException
+    {
+        this.shaper = shaper;
+        selector = Selector.open();
+    }
+
+    /**
+     * Hand a new client over to this loop.  Safe to call from any thread.
+     *
+     * @param channel       The client's channel.
+     * @param pending       Bytes already read from the client that we should handle first.
+     * @param handshaken    Whether the client has already had its handshake answered.
+     */
+    void register(SocketChannel channel, ByteBuffer pending, boolean handshaken)
+    {
+        this.pending.add(new Registration(channel, pending, handshaken));
+        selector.wakeup();
+    }
+
+    /**
+     * Have a session's {@link UpdateSession#wake()} called after a while,
+     * instead of waiting for its socket to become writable.
+     *
+     * @param session   The session that's out of bandwidth allowance.
+     * @param nanos     How long until it should get some more.
+     */
+    void throttle(UpdateSession session, long nanos)
+    {
+        throttled.add(new Wakeup(session, System.nanoTime() + Math.max(nanos, MIN_THROTTLE)));
+    }
+
+    /**
+     * Called by a session the first time it's closed.
+     */
+    void closed(UpdateSession session)
+    {
+        sessions.remove(session);
+    }
+
+    int getSessionCount()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * @return  What each of our sessions has cost us so far.
+     */
+    List<SessionStats> getSessionStats()
+    {
+        List<SessionStats> stats = new ArrayList<>();
+        for (UpdateSession session : sessions)
+        {
+            stats.add(session.getStats());
+        }
+        return stats;
+    }
+
+    void stop()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                Wakeup first = throttled.peek();
+                if (first == null)
+                {
+                    selector.select();
+                }
+                else
+                {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(first.time - System.nanoTime());
+                    if (millis > 0)
+                    {
+                        selector.select(millis);
+                    }
+                    else
+                    {
+                        selector.selectNow();
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                break;
+            }
+
+            Registration registration;
+            while ((registration = pending.poll()) != null)
+            {
+                registration.complete();
+            }
+
+            long now = System.nanoTime();
+            while (!throttled.isEmpty() && throttled.peek().time - now <= 0)
+            {
+                UpdateSession session = throttled.poll().session;
+                try
+                {
+                    session.wake();
+                }
+                catch (IOException e)
+                {
+                    session.close();
+                }
+                catch (RuntimeException e)
+                {
+                    failed(session, e);
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                UpdateSession session = (UpdateSession) key.attachment();
+                try
+                {
+                    if (key.isValid() && key.isReadable())
+                    {
+                        session.read();
+                    }
+                    if (key.isValid() && key.isWritable())
+                    {
+                        session.flush();
+                    }
+                }
+                catch (IOException e)
+                {
+                    session.close();
+                }
+                catch (RuntimeException e)
+                {
+                    failed(session, e);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys())
+        {
+            ((UpdateSession) key.attachment()).close();
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hang up on a session that ran into something we didn't expect, like an
+     * archive too corrupt to encode, rather than letting it take down this
+     * loop and every other session on it.
+     */
+    private static void failed(UpdateSession session, RuntimeException e)
+    {
+        e.printStackTrace();
+        session.close();
+    }
+
+    private static final class Wakeup implements Comparable<Wakeup>
+    {
+
+        private final UpdateSession session;
+        private final long time;
+
+        Wakeup(UpdateSession session, long time)
+        {
+            this.session = session;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Wakeup other)
+        {
+            return Long.compare(time, other.time);
+        }
+
+    }
+
+    private final class Registration
+    {
+
+        private final SocketChannel channel;
+        private final ByteBuffer data;
+        private final boolean handshaken;
+
+        Registration(SocketChannel channel, ByteBuffer data, boolean handshaken)
+        {
+            this.channel = channel;
+            this.data = data;
+            this.handshaken = handshaken;
+        }
+
+        void complete()
+        {
+            UpdateSession session = new UpdateSession(UpdateLoop.this, channel, handshaken, shaper);
+            sessions.add(session);
+            try
+            {
+                channel.configureBlocking(false);
+                session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+                session.receive(data);
+            }
+            catch (IOException e)
+            {
+                session.close();
+            }
+            catch (RuntimeException e)
+            {
+                // Including channels a selector can't take, or a corrupt archive asked
+                // for right away.
+                failed(session, e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.connergdavis.rsps.update;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns containers from the cache into exactly the bytes the client
+ * expects from the update server, so that they can be built once and
+ * written to any number of peers afterward.
+ *
+ * A response is the index and file ID followed by the container's
+ * compression type, length and data (minus the version trailer the cache
+ * stores on disk).  The client reads it in 512 byte blocks, and every
+ * block after the first has to start with a 0xFF marker.  Responses to
+ * background (non-urgent) requests have the top bit of the compression
+ * type set so the client can tell which of its queues they answer.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class UpdateResponses
+{
+
+    /**
+     * Size of each block the client reads, including the marker.
+     */
+    private static final int BLOCK_SIZE = 512;
+
+    private UpdateResponses()
+    {
+    }
+
+    /**
+     * Build the on-the-wire response for a container as it is stored in the cache,
+     * as an answer to an urgent request.
+     *
+     * @param index     The index (or 255 for reference tables) the file belongs to.
+     * @param file      The file's ID within that index.
+     * @param container The raw container, read from its current position.
+     * @return          Read-only buffer holding the whole response, positioned at its start.
+     */
+    public static ByteBuffer encode(int index, int file, ByteBuffer container)
+    {
+        return encode(index, file, container, true);
+    }
+
+    /**
+     * Build the on-the-wire response for a container as it is stored in the cache.
+     *
+     * @param index     The index (or 255 for reference tables) the file belongs to.
+     * @param file      The file's ID within that index.
+     * @param container The raw container, read from its current position.
+     * @param urgent    Whether this answers an urgent request rather than a background one.
+     * @return          Read-only buffer holding the whole response, positioned at its start.
+     */
+    public static ByteBuffer encode(int index, int file, ByteBuffer container, boolean urgent)
+    {
+        int start = container.position();
+        int compression = container.get(start) & 0xFF;
+        int length = container.getInt(start + 1);
+
+        // Compressed containers also carry their uncompressed length.
+        int payload = 5 + length + (compression == 0 ? 0 : 4);
+        ByteBuffer data = container.duplicate();
+        data.limit(start + payload);
+
+        if (!urgent)
+        {
+            // Copy just enough to flag the compression type, the rest is untouched.
+            ByteBuffer flagged = ByteBuffer.allocate(payload);
+            flagged.put(data).put(0, (byte) (compression | 0x80));
+            flagged.flip();
+            data = flagged;
+        }
+
+        return frame(index, file, data);
+    }
+
+    /**
+     * Build the response for data that isn't stored as a container, like
+     * the checksum table, by giving it an uncompressed container header.
+     *
+     * @param index The index the data belongs to.
+     * @param file  The file ID of the data.
+     * @param raw   Uncompressed data, read from its current position.
+     * @return      Read-only buffer holding the whole response, positioned at its start.
+     */
+    public static ByteBuffer encodeUncompressed(int index, int file, ByteBuffer raw)
+    {
+        return encodeUncompressed(index, file, raw, true);
+    }
+
+    /**
+     * Build the response for data that isn't stored as a container, like
+     * the checksum table, by giving it an uncompressed container header.
+     *
+     * @param index     The index the data belongs to.
+     * @param file      The file ID of the data.
+     * @param raw       Uncompressed data, read from its current position.
+     * @param urgent    Whether this answers an urgent request rather than a background one.
+     * @return          Read-only buffer holding the whole response, positioned at its start.
+     */
+    public static ByteBuffer encodeUncompressed(int index, int file, ByteBuffer raw, boolean urgent)
+    {
+        ByteBuffer container = ByteBuffer.allocate(5 + raw.remaining());
+        container.put((byte) (urgent ? 0 : 0x80)).putInt(raw.remaining()).put(raw.duplicate());
+        container.flip();
+        return frame(index, file, container);
+    }
+
+    private static ByteBuffer frame(int index, int file, ByteBuffer data)
+    {
+        int size = 3 + data.remaining();
+        if (size > BLOCK_SIZE)
+        {
+            size += (size - BLOCK_SIZE + BLOCK_SIZE - 2) / (BLOCK_SIZE - 1);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put((byte) index).putShort((short) file);
+        while (data.hasRemaining())
+        {
+            if (out.position() % BLOCK_SIZE == 0)
+            {
+                out.put((byte) 0xFF);
+            }
+
+            int chunk = Math.min(data.remaining(), BLOCK_SIZE - out.position() % BLOCK_SIZE);
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + chunk);
+            out.put(slice);
+            data.position(data.position() + chunk);
+        }
+
+        out.flip();
+        return out.asReadOnlyBuffer();
+    }
+
+}
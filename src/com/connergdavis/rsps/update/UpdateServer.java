@@ -0,0 +1,211 @@
+package com.connergdavis.rsps.update;
+
+import com.connergdavis.rsps.SocketPolicy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Serves the cache to clients on threads of its own, so that a spike
+ * of file downloads never competes with in-game packets for a
+ * {@link com.connergdavis.rsps.Peer}'s thread.
+ *
+ * Clients reach us in one of two ways: game worlds hand over anyone who
+ * sends them the update server handshake, and if we're given a port of
+ * our own we accept clients on it directly.  The latter lets a process
+ * run as nothing but an update server, which any number of game worlds
+ * can then point their clients at.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class UpdateServer
+{
+
+    private final UpdateLoop[] loops;
+    private final int maxSessions;
+    private final SocketPolicy socketPolicy;
+    private List<ServerSocketChannel> serverChannels = Collections.emptyList();
+    private int next;
+
+    /**
+     * @param threads       How many threads (each with its own selector) to serve clients with.
+     * @param maxSessions   The most clients we'll serve at once.
+     * @param shaper        Limits how fast we send files, shared by every thread.
+     * @param socketPolicy  Options for our clients' sockets and how we listen for them.
+     * @throws IOException  If a selector couldn't be opened.
+     */
+    public UpdateServer(int threads, int maxSessions, BandwidthShaper shaper, SocketPolicy socketPolicy)
+        throws IOException
+    {
+        this.loops = new UpdateLoop[threads];
+        this.maxSessions = maxSessions;
+        this.socketPolicy = socketPolicy;
+        for (int i = 0; i < threads; i++)
+        {
+            loops[i] = new UpdateLoop(shaper);
+        }
+    }
+
+    /**
+     * Listen for clients on a port of our own, as well as taking them from worlds.
+     *
+     * @param port          The port to listen on.
+     * @throws IOException  If the port couldn't be bound.
+     */
+    public void bind(int port) throws IOException
+    {
+        serverChannels = socketPolicy.bind(port);
+    }
+
+    public void start()
+    {
+        for (int i = 0; i < loops.length; i++)
+        {
+            new Thread(loops[i], "update-" + i).start();
+        }
+
+        if (!serverChannels.isEmpty())
+        {
+            for (int i = 0; i < socketPolicy.getAcceptors(); i++)
+            {
+                final ServerSocketChannel serverChannel = serverChannels.get(i % serverChannels.size());
+                new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        accept(serverChannel);
+                    }
+                }, "update-acceptor-" + i).start();
+            }
+            System.out.printf("Update server listening on port %d.\n",
+                serverChannels.get(0).socket().getLocalPort());
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel)
+    {
+        while (true)
+        {
+            try
+            {
+                SocketChannel channel = serverChannel.accept();
+                if (channel != null)
+                {
+                    register(channel, ByteBuffer.allocate(0), false);
+                }
+            }
+            catch (ClosedChannelException e)
+            {
+                break;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Take over serving a client.  The calling thread must not touch the
+     * channel again afterward.
+     *
+     * @param channel       The client's channel.
+     * @param pending       Anything already read from the client that we should handle first.
+     * @param handshaken    Whether the client's handshake has already been answered.
+     */
+    public void register(SocketChannel channel, ByteBuffer pending, boolean handshaken)
+    {
+        boolean accepted = false;
+        if (getSessionCount() < maxSessions)
+        {
+            try
+            {
+                // Clients handed over by a world still have the in-game options.
+                socketPolicy.apply(channel);
+                accepted = true;
+            }
+            catch (IOException e)
+            {
+                // They've hung up already.
+            }
+        }
+
+        if (!accepted)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        UpdateLoop loop;
+        synchronized (this)
+        {
+            loop = loops[next];
+            next = (next + 1) % loops.length;
+        }
+        loop.register(channel, pending, handshaken);
+    }
+
+    /**
+     * @return  How many clients we're serving right now.
+     */
+    public int getSessionCount()
+    {
+        int count = 0;
+        for (UpdateLoop loop : loops)
+        {
+            count += loop.getSessionCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return  What each client we're serving right now has cost us so far.
+     */
+    public List<SessionStats> getSessionStats()
+    {
+        List<SessionStats> stats = new ArrayList<>();
+        for (UpdateLoop loop : loops)
+        {
+            stats.addAll(loop.getSessionStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Stop accepting and disconnect everyone we're serving.
+     */
+    public void stop()
+    {
+        for (ServerSocketChannel serverChannel : serverChannels)
+        {
+            try
+            {
+                serverChannel.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        for (UpdateLoop loop : loops)
+        {
+            loop.stop();
+        }
+    }
+
+}
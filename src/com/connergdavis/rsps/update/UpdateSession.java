@@ -0,0 +1,405 @@
+package com.connergdavis.rsps.update;
+
+import com.connergdavis.rsps.handler.Handler;
+import com.connergdavis.rsps.handler.InvalidStreamException;
+import com.connergdavis.rsps.handler.login.UpdateServerClientInitiated;
+import com.connergdavis.rsps.handler.login.UpdateServerClientStatus;
+import com.connergdavis.rsps.handler.login.UpdateServerHandshake;
+import com.connergdavis.rsps.handler.login.UpdateServerNewEncryptionByte;
+import com.connergdavis.rsps.handler.login.UpdateServerRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * A single client's connection to the update server.  Unlike a game
+ * {@link com.connergdavis.rsps.Peer} it doesn't get a thread of its own,
+ * and is instead read and written by whichever {@link UpdateLoop} it was
+ * registered with.
+ *
+ * After the handshake, every request the client sends is exactly four
+ * bytes (an opcode followed by three bytes of payload), so framing is easy.
+ *
+ * Responses to urgent requests are always written before background ones,
+ * and how fast either goes out is limited by the {@link BandwidthShaper}.
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+final class UpdateSession
+{
+
+    /**
+     * Size of the handshake: opcode 15 followed by the client revision.
+     */
+    private static final int HANDSHAKE_SIZE = 5;
+    private static final int REQUEST_SIZE = 4;
+    /**
+     * Stop reading new requests once this many responses are waiting to be
+     * written, so a client can't make us buffer the whole cache for it.
+     */
+    private static final int MAX_QUEUED = 64;
+    /**
+     * Smallest write we'll bother making when bandwidth is limited, unless
+     * that's all there is left to send.  One block of a response.
+     */
+    private static final int MIN_WRITE = 512;
+
+    private final UpdateLoop loop;
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocate(512);
+    /**
+     * Whatever was handed over with the channel that didn't fit into
+     * {@link #in} yet, or null.  Nothing new is read until it's all been
+     * processed, so requests are still answered in the order they were sent.
+     */
+    private ByteBuffer handedOver;
+    private final Queue<ByteBuffer> urgent = new ArrayDeque<>();
+    private final Queue<ByteBuffer> background = new ArrayDeque<>();
+    private final BandwidthShaper shaper;
+    private final TokenBucket bucket;
+    private final SessionStats stats;
+    /**
+     * Responses being written together, kept around between writes.
+     */
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_QUEUED];
+    private SelectionKey key;
+    private boolean handshaken;
+    /**
+     * Set once we've decided to hang up, we just want to finish writing first.
+     */
+    private boolean closing;
+    private boolean closed;
+    /**
+     * Whether our loop is going to wake us up once we have bandwidth again.
+     */
+    private boolean throttled;
+
+    /**
+     * @param loop          The loop this session is serviced by.
+     * @param channel       The client's channel.
+     * @param handshaken    Whether the handshake was already handled elsewhere,
+     *                      like when a game world hands the client over to us.
+     * @param shaper        Decides how fast we may write to the client.
+     */
+    UpdateSession(UpdateLoop loop, SocketChannel channel, boolean handshaken, BandwidthShaper shaper)
+    {
+        this.loop = loop;
+        this.channel = channel;
+        this.handshaken = handshaken;
+        this.shaper = shaper;
+        this.bucket = shaper.createPeerBucket();
+        this.stats = new SessionStats(channel.socket().getInetAddress());
+    }
+
+    void setKey(SelectionKey key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * Treat bytes that were read before we took over the channel as if
+     * we had just read them ourselves.  There can be more of them than we
+     * usually read at once, if the client sent lots of requests right away.
+     */
+    void receive(ByteBuffer pending) throws IOException
+    {
+        stats.received(pending.remaining());
+        if (pending.hasRemaining())
+        {
+            handedOver = pending;
+        }
+        process();
+    }
+
+    /**
+     * Read whatever the client has sent and queue up responses to all of it.
+     */
+    void read() throws IOException
+    {
+        int read = channel.read(in);
+        if (read == -1)
+        {
+            throw new IOException("Client hung up");
+        }
+        stats.received(read);
+        process();
+    }
+
+    private void process() throws IOException
+    {
+        do
+        {
+            if (handedOver != null)
+            {
+                ByteBuffer next = handedOver.duplicate();
+                next.limit(next.position() + Math.min(next.remaining(), in.remaining()));
+                in.put(next);
+                handedOver.position(next.position());
+                if (!handedOver.hasRemaining())
+                {
+                    handedOver = null;
+                }
+            }
+            decode();
+        }
+        while (handedOver != null && !closing && getQueued() < MAX_QUEUED);
+
+        // Whatever we can't queue yet stays in the buffer until there's room.
+        interest(SelectionKey.OP_READ, !closing && getQueued() < MAX_QUEUED && handedOver == null);
+        flush();
+    }
+
+    /**
+     * Queue up responses to as many of the requests in {@link #in} as we can.
+     */
+    private void decode() throws IOException
+    {
+        in.flip();
+        try
+        {
+            while (!closing && getQueued() < MAX_QUEUED)
+            {
+                if (!handshaken)
+                {
+                    if (in.remaining() < HANDSHAKE_SIZE)
+                    {
+                        break;
+                    }
+                    if ((in.get() & 0xFF) != 15)
+                    {
+                        throw new IOException("Expected update server handshake");
+                    }
+
+                    handshaken = true;
+                    respond(new UpdateServerHandshake(), HANDSHAKE_SIZE - 1,
+                        UpdateServerHandshake.RESPONSE_OUT_OF_DATE, true);
+                    continue;
+                }
+
+                if (in.remaining() < REQUEST_SIZE)
+                {
+                    break;
+                }
+                int packetId = in.get() & 0xFF;
+                stats.requested();
+                respond(getHandlerById(packetId), REQUEST_SIZE - 1, -1, packetId != 0);
+            }
+        }
+        catch (InvalidStreamException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        finally
+        {
+            in.compact();
+        }
+    }
+
+    /**
+     * Let a handler decode its share of the buffer and queue up its response.
+     *
+     * @param handler       The handler for the packet at the buffer's position.
+     * @param size          How many bytes of payload the packet has.
+     * @param rejection     Response code to send (and then hang up) if the
+     *                      handler finds the packet invalid, or -1 to just hang up.
+     * @param urgent        Whether the client needs the response right away,
+     *                      rather than just prefetching.
+     */
+    private void respond(Handler handler, int size, int rejection, boolean urgent)
+        throws IOException, InvalidStreamException
+    {
+        // Give the handler exactly its own bytes, some of them don't read all of them.
+        ByteBuffer payload = in.duplicate();
+        payload.limit(in.position() + size);
+        in.position(in.position() + size);
+
+        if (!handler.decode(payload))
+        {
+            if (rejection == -1)
+            {
+                throw new IOException("Invalid update server request");
+            }
+
+            ByteBuffer response = ByteBuffer.allocate(1).put((byte) rejection);
+            response.flip();
+            this.urgent.add(response);
+            closing = true;
+            return;
+        }
+
+        ByteBuffer response = handler.respond();
+        if (response != null)
+        {
+            response.flip();
+            (urgent ? this.urgent : background).add(response);
+        }
+    }
+
+    /**
+     * Write as much of our queued responses as the socket and our bandwidth
+     * allowance will take right now, with a single write for as many of them
+     * as possible.  If the socket is full we ask to be told
+     * when it has room; if we're out of allowance our loop calls us back once
+     * there's more, so nobody's thread ever sleeps waiting on either.
+     */
+    void flush() throws IOException
+    {
+        Queue<ByteBuffer> queue;
+        while ((queue = nextQueue()) != null)
+        {
+            boolean isUrgent = queue == urgent;
+            long allowance = shaper.allowance(bucket, isUrgent);
+            long needed = Math.min(queue.peek().remaining(), MIN_WRITE);
+            if (allowance < needed)
+            {
+                // Wait until we can send a decent amount, rather than trickling out a few bytes at a time.
+                interest(SelectionKey.OP_WRITE, false);
+                if (!throttled)
+                {
+                    throttled = true;
+                    loop.throttle(this, shaper.nanosUntilAllowed(bucket, isUrgent, needed));
+                }
+                return;
+            }
+
+            // Write as many queued responses as we're allowed to in one go.
+            int count = 0;
+            long wanted = 0;
+            for (ByteBuffer next : queue)
+            {
+                if (wanted >= allowance)
+                {
+                    break;
+                }
+                batch[count++] = next;
+                wanted += next.remaining();
+            }
+
+            ByteBuffer last = batch[count - 1];
+            int limit = last.limit();
+            if (wanted > allowance)
+            {
+                last.limit(limit - (int) (wanted - allowance));
+                wanted = allowance;
+            }
+            long written = channel.write(batch, 0, count);
+            last.limit(limit);
+            Arrays.fill(batch, 0, count, null);
+            shaper.spend(bucket, isUrgent, written);
+            stats.sent(written);
+
+            while (!queue.isEmpty() && !queue.peek().hasRemaining())
+            {
+                queue.poll();
+            }
+            if (written < wanted)
+            {
+                // The socket is full, so wait until it has room.
+                interest(SelectionKey.OP_WRITE, true);
+                return;
+            }
+        }
+
+        interest(SelectionKey.OP_WRITE, false);
+        if (closing)
+        {
+            close();
+        }
+        else if ((key.interestOps() & SelectionKey.OP_READ) == 0)
+        {
+            // We stopped reading because too much was queued, so catch up now.
+            process();
+        }
+    }
+
+    /**
+     * Called by our loop once we've waited out being throttled.
+     */
+    void wake() throws IOException
+    {
+        throttled = false;
+        flush();
+    }
+
+    /**
+     * @return  The queue to write from next: urgent responses go first, but
+     *          never in the middle of a background one, since the client reads
+     *          each response whole.  Null if there's nothing to write.
+     */
+    private Queue<ByteBuffer> nextQueue()
+    {
+        ByteBuffer started = background.peek();
+        if (started != null && started.position() > 0)
+        {
+            return background;
+        }
+        return !urgent.isEmpty() ? urgent : started != null ? background : null;
+    }
+
+    SessionStats getStats()
+    {
+        return stats;
+    }
+
+    private int getQueued()
+    {
+        return urgent.size() + background.size();
+    }
+
+    private void interest(int op, boolean on)
+    {
+        if (key != null && key.isValid())
+        {
+            key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
+        }
+    }
+
+    private Handler getHandlerById(int packetId) throws IOException
+    {
+        switch (packetId)
+        {
+            case 0:
+            case 1:     // Update server priority request
+                return new UpdateServerRequest(channel, packetId);
+            case 2:     // Client is logged in
+            case 3:     // Client is logged out
+                return new UpdateServerClientStatus();
+            case 4:
+                return new UpdateServerNewEncryptionByte();
+            case 6:
+                return new UpdateServerClientInitiated();
+        }
+        throw new IOException("Unknown update server packet [" + packetId + "]");
+    }
+
+    void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        closed = true;
+        closing = true;
+        loop.closed(this);
+        if (key != null)
+        {
+            key.cancel();
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+}
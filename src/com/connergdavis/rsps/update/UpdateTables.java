@@ -0,0 +1,233 @@
+package com.connergdavis.rsps.update;
+
+import net.openrs.cache.Cache;
+import net.openrs.cache.Container;
+import net.openrs.cache.FileStore;
+import net.openrs.cache.ReferenceTable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The responses every client asks for before anything else: the checksum
+ * table (255/255) and the reference table of each index (255/x).
+ *
+ * These used to be rehashed from the cache on every request, so instead
+ * they are encoded once when the cache is opened and then shared between
+ * every peer as read-only buffers, once as answers to urgent requests and
+ * once as answers to background ones.  An instance never changes; when the
+ * cache does, a new one is built and swapped in its place.
+ *
+ * When building from an updated cache we compare it against the tables we
+ * already have, so that only the indices that actually changed get hashed,
+ * decoded and encoded again.  Their reference tables then tell us exactly
+ * which archives changed (see {@link #isUnchanged(UpdateTables, int, int)}).
+ *
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class UpdateTables
+{
+
+    private final ByteBuffer checksumTable;
+    private final ByteBuffer backgroundChecksumTable;
+    private final ByteBuffer[] referenceTables;
+    private final ByteBuffer[] backgroundReferenceTables;
+    /**
+     * Everything below is kept per index only so the next update can be
+     * compared against it: the raw 255/x containers as they are on disk,
+     * their CRCs and versions, and the decoded reference tables.
+     */
+    private final ByteBuffer[] containers;
+    private final int[] crcs;
+    private final int[] versions;
+    private final ReferenceTable[] tables;
+    /**
+     * How many indices were built from scratch rather than reused.
+     */
+    private final int rebuilt;
+
+    private UpdateTables(ByteBuffer[] referenceTables, ByteBuffer[] backgroundReferenceTables,
+                         ByteBuffer[] containers, int[] crcs, int[] versions, ReferenceTable[] tables, int rebuilt)
+    {
+        this.referenceTables = referenceTables;
+        this.backgroundReferenceTables = backgroundReferenceTables;
+        this.containers = containers;
+        this.crcs = crcs;
+        this.versions = versions;
+        this.tables = tables;
+        this.rebuilt = rebuilt;
+
+        // Each index is described by its CRC and version, and nothing else in revision 562.
+        ByteBuffer raw = ByteBuffer.allocate(crcs.length * 8);
+        for (int i = 0; i < crcs.length; i++)
+        {
+            raw.putInt(crcs[i]).putInt(versions[i]);
+        }
+        raw.flip();
+        checksumTable = UpdateResponses.encodeUncompressed(255, 255, raw);
+        backgroundChecksumTable = UpdateResponses.encodeUncompressed(255, 255, raw, false);
+    }
+
+    /**
+     * Encode the checksum table and all reference tables of a cache.
+     *
+     * @param cache         The cache to build from.
+     * @return              The finished tables.
+     * @throws IOException  If the cache couldn't be read.
+     */
+    public static UpdateTables build(Cache cache) throws IOException
+    {
+        return build(cache, null);
+    }
+
+    /**
+     * Build the tables for a new revision of the cache, reusing everything
+     * from these tables for indices whose reference table hasn't changed.
+     *
+     * @param cache         The updated cache.
+     * @return              The finished tables.
+     * @throws IOException  If the cache couldn't be read.
+     */
+    public UpdateTables update(Cache cache) throws IOException
+    {
+        return build(cache, this);
+    }
+
+    private static UpdateTables build(Cache cache, UpdateTables previous) throws IOException
+    {
+        FileStore store = cache.getStore();
+        int count = store.getFileCount(255);
+        ByteBuffer[] referenceTables = new ByteBuffer[count];
+        ByteBuffer[] backgroundReferenceTables = new ByteBuffer[count];
+        ByteBuffer[] containers = new ByteBuffer[count];
+        int[] crcs = new int[count];
+        int[] versions = new int[count];
+        ReferenceTable[] tables = new ReferenceTable[count];
+        int rebuilt = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            ByteBuffer container;
+            try
+            {
+                container = store.read(255, i);
+            }
+            catch (FileNotFoundException e)
+            {
+                continue;
+            }
+            if (container == null || container.remaining() == 0)
+            {
+                continue;
+            }
+
+            if (previous != null && i < previous.containers.length && container.equals(previous.containers[i]))
+            {
+                containers[i] = previous.containers[i];
+                referenceTables[i] = previous.referenceTables[i];
+                backgroundReferenceTables[i] = previous.backgroundReferenceTables[i];
+                crcs[i] = previous.crcs[i];
+                versions[i] = previous.versions[i];
+                tables[i] = previous.tables[i];
+                continue;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(container.duplicate());
+            ReferenceTable table = ReferenceTable.decode(Container.decode(container.duplicate()).getData());
+
+            containers[i] = container.asReadOnlyBuffer();
+            referenceTables[i] = UpdateResponses.encode(255, i, container.duplicate());
+            backgroundReferenceTables[i] = UpdateResponses.encode(255, i, container.duplicate(), false);
+            crcs[i] = (int) crc.getValue();
+            versions[i] = table.getVersion();
+            tables[i] = table;
+            rebuilt++;
+        }
+
+        return new UpdateTables(referenceTables, backgroundReferenceTables, containers, crcs, versions, tables,
+            rebuilt);
+    }
+
+    /**
+     * Tell whether an archive is exactly the same in these tables as in older
+     * ones, according to the CRC and version its reference table gives it.
+     *
+     * @param previous  The tables of the revision we're comparing against.
+     * @param index     The index the archive belongs to.
+     * @param file      The archive's ID within that index.
+     * @return          True if the archive is the same in both revisions.
+     */
+    public boolean isUnchanged(UpdateTables previous, int index, int file)
+    {
+        if (index < 0 || index >= tables.length || index >= previous.tables.length
+            || tables[index] == null || previous.tables[index] == null)
+        {
+            return false;
+        }
+        if (tables[index] == previous.tables[index])
+        {
+            // The whole index was carried over untouched.
+            return true;
+        }
+
+        ReferenceTable.Entry now = tables[index].getEntry(file);
+        ReferenceTable.Entry before = previous.tables[index].getEntry(file);
+        return now != null && before != null
+            && now.getCrc() == before.getCrc() && now.getVersion() == before.getVersion();
+    }
+
+    /**
+     * @return  How many indices had to be built from scratch, rather than being
+     *          reused from the tables these were updated from.
+     */
+    public int getRebuiltCount()
+    {
+        return rebuilt;
+    }
+
+    /**
+     * @return  The 255/255 response to an urgent request, positioned at its start.
+     */
+    public ByteBuffer getChecksumTable()
+    {
+        return getChecksumTable(true);
+    }
+
+    /**
+     * @param urgent    Whether it answers an urgent request rather than a background one.
+     * @return          The 255/255 response, positioned at its start.
+     */
+    public ByteBuffer getChecksumTable(boolean urgent)
+    {
+        return (urgent ? checksumTable : backgroundChecksumTable).duplicate();
+    }
+
+    /**
+     * @param index The index whose reference table we want.
+     * @return      The 255/index response to an urgent request positioned at
+     *              its start, or null if there is no such index.
+     */
+    public ByteBuffer getReferenceTable(int index)
+    {
+        return getReferenceTable(index, true);
+    }
+
+    /**
+     * @param index     The index whose reference table we want.
+     * @param urgent    Whether it answers an urgent request rather than a background one.
+     * @return          The 255/index response positioned at its start, or
+     *                  null if there is no such index.
+     */
+    public ByteBuffer getReferenceTable(int index, boolean urgent)
+    {
+        if (index < 0 || index >= referenceTables.length || referenceTables[index] == null)
+        {
+            return null;
+        }
+        return (urgent ? referenceTables : backgroundReferenceTables)[index].duplicate();
+    }
+
+}
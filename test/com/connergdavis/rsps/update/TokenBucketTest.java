@@ -0,0 +1,52 @@
+package com.connergdavis.rsps.update;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Conner Davis <connergdavis@gmail.com>
+ */
+public final class TokenBucketTest
+{
+
+    private static final long RATE = 1024 * 1024;
+    private static final long CAPACITY = 256 * 1024;
+
+    @Test
+    public void refillsAfterShortIdle()
+    {
+        long start = System.nanoTime();
+        TokenBucket bucket = new TokenBucket(RATE, CAPACITY);
+        bucket.spend(CAPACITY);
+
+        // A quarter of a second at 1MB/s is exactly what we spent.
+        assertEquals(CAPACITY, bucket.available(start + TimeUnit.MILLISECONDS.toNanos(250)), RATE / 1000);
+    }
+
+    @Test
+    public void refillsAfterLongIdle()
+    {
+        TokenBucket bucket = new TokenBucket(RATE, CAPACITY);
+        bucket.spend(CAPACITY + 45056);
+
+        // Long enough that (elapsed * rate) overflows a long.
+        long later = System.nanoTime() + TimeUnit.HOURS.toNanos(3);
+        assertEquals(CAPACITY, bucket.available(later));
+        assertEquals(CAPACITY, bucket.available(later + TimeUnit.MILLISECONDS.toNanos(200)));
+    }
+
+    @Test
+    public void repaysDebtBeforeFilling()
+    {
+        long start = System.nanoTime();
+        TokenBucket bucket = new TokenBucket(RATE, CAPACITY);
+        bucket.spend(CAPACITY * 2);
+
+        // Half the time it takes to pay off the debt and fill up again.
+        assertEquals(0, bucket.available(start + TimeUnit.MILLISECONDS.toNanos(250)), RATE / 1000);
+    }
+
+}